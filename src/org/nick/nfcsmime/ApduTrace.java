@@ -0,0 +1,189 @@
+package org.nick.nfcsmime;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+import android.util.Log;
+
+/**
+ * Runtime-configurable APDU trace. When off, recording is a single volatile
+ * read. When on, every <code>sampleRate</code>-th exchange is kept in a
+ * bounded ring buffer, and optionally logged as it happens. Commands and
+ * responses are stored by reference and only formatted when the buffer is
+ * dumped, e.g. after a failed signature. The data of VERIFY PIN commands is
+ * blanked before it is recorded.
+ *
+ * The initial mode can be set without rebuilding with
+ * <code>adb shell setprop log.tag.ApduTrace VERBOSE</code> (log every
+ * exchange) or <code>DEBUG</code> (ring buffer only).
+ */
+public class ApduTrace {
+
+    private static final String TAG = ApduTrace.class.getSimpleName();
+
+    public enum Mode {
+        OFF, RING, LOG
+    }
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private static final int INS_VERIFY_PIN = 0x42;
+    // CLA | INS | P1 | P2 | Lc
+    private static final int SHORT_HEADER_LEN = 5;
+    // CLA | INS | P1 | P2 | 00 | Lc1 | Lc2
+    private static final int EXTENDED_HEADER_LEN = 7;
+
+    private volatile Mode mode;
+    private volatile int sampleRate = 1;
+
+    private final Entry[] entries;
+    private int next;
+    private long seen;
+    private long recorded;
+
+    public ApduTrace() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ApduTrace(int capacity) {
+        entries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = new Entry();
+        }
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            mode = Mode.LOG;
+        } else if (Log.isLoggable(TAG, Log.DEBUG)) {
+            mode = Mode.RING;
+        } else {
+            mode = Mode.OFF;
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Records one of every <code>sampleRate</code> exchanges.
+     */
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Invalid sample rate: "
+                    + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    public boolean isEnabled() {
+        return mode != Mode.OFF;
+    }
+
+    /**
+     * Records an exchange. <code>command</code> and <code>response</code>
+     * are kept as is, callers must not modify them afterwards.
+     * <code>response</code> is <code>null</code> if the transceive failed.
+     */
+    public void record(byte[] command, byte[] response, long nanos) {
+        Mode mode = this.mode;
+        if (mode == Mode.OFF) {
+            return;
+        }
+        command = redact(command);
+
+        synchronized (this) {
+            if (seen++ % sampleRate != 0) {
+                return;
+            }
+            Entry entry = entries[next];
+            next = (next + 1) % entries.length;
+            recorded++;
+            entry.timeMillis = System.currentTimeMillis();
+            entry.nanos = nanos;
+            entry.command = command;
+            entry.response = response;
+        }
+        if (mode == Mode.LOG) {
+            Log.d(TAG, "--> " + Hex.toHex(command));
+            Log.d(TAG, "<-- "
+                    + (response == null ? "(failed)" : Hex.toHex(response)));
+        }
+    }
+
+    /**
+     * Logs the buffered exchanges, oldest first.
+     */
+    public void dump(String reason) {
+        if (!isEnabled()) {
+            return;
+        }
+        Log.w(TAG, "APDU trace (" + reason + "):");
+        for (String line : format().split("\n")) {
+            Log.w(TAG, line);
+        }
+    }
+
+    /**
+     * Returns the buffered exchanges, oldest first, one line per command
+     * and response.
+     */
+    public synchronized String format() {
+        SimpleDateFormat df = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        StringBuilder sb = new StringBuilder();
+        int count = (int) Math.min(recorded, entries.length);
+        int start = (next - count + entries.length) % entries.length;
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries[(start + i) % entries.length];
+            sb.append(df.format(new Date(entry.timeMillis))).append(" --> ");
+            Hex.appendHex(sb, entry.command, 0, entry.command.length).append(
+                    '\n');
+            sb.append(String.format(Locale.US, "%.1fms", entry.nanos / 1e6))
+                    .append(" <-- ");
+            if (entry.response == null) {
+                sb.append("(failed)");
+            } else {
+                Hex.appendHex(sb, entry.response, 0, entry.response.length);
+            }
+            sb.append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : entries) {
+            entry.command = null;
+            entry.response = null;
+        }
+        next = 0;
+        recorded = 0;
+    }
+
+    // returns a copy of VERIFY PIN commands with the PIN zeroed, keeping
+    // the header and Lc. Other commands are returned as is.
+    private static byte[] redact(byte[] command) {
+        if (command.length <= SHORT_HEADER_LEN
+                || (command[1] & 0xff) != INS_VERIFY_PIN) {
+            return command;
+        }
+
+        int headerLen = command[4] == 0 && command.length > EXTENDED_HEADER_LEN ? EXTENDED_HEADER_LEN
+                : SHORT_HEADER_LEN;
+        byte[] result = command.clone();
+        Arrays.fill(result, headerLen, result.length, (byte) 0);
+
+        return result;
+    }
+
+    private static class Entry {
+        long timeMillis;
+        long nanos;
+        byte[] command;
+        byte[] response;
+    }
+}
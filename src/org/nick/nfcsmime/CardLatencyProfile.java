@@ -0,0 +1,151 @@
+package org.nick.nfcsmime;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Command latencies learned for a card model, used to pick transceive
+ * timeouts. Commands are told apart by INS and P2, since P2 selects the
+ * operation for some of them, e.g. COMPUTE CRYPT INIT and FINAL. Timeouts
+ * follow the TCP retransmission timer (RFC 6298): smoothed latency plus four
+ * times its variation, but at least twice the smoothed latency, doubled
+ * after each timeout until the command succeeds again.
+ *
+ * Profiles are shared by all cards with the same historical bytes for the
+ * lifetime of the process.
+ */
+public class CardLatencyProfile {
+
+    private static final int MIN_TIMEOUT_MILLIS = 500;
+    private static final int MAX_TIMEOUT_MILLIS = 15000;
+
+    private static final String UNKNOWN_MODEL = "unknown";
+
+    private static final Map<String, CardLatencyProfile> profiles = new HashMap<String, CardLatencyProfile>();
+
+    private final String model;
+    // keyed by INS << 8 | P2
+    private final Map<Integer, Estimate> estimates = new HashMap<Integer, Estimate>();
+
+    CardLatencyProfile(String model) {
+        this.model = model;
+    }
+
+    /**
+     * Returns the profile for the card model identified by
+     * <code>historicalBytes</code>, creating it if needed.
+     */
+    public static CardLatencyProfile forCard(byte[] historicalBytes) {
+        String model = historicalBytes == null || historicalBytes.length == 0 ? UNKNOWN_MODEL
+                : Hex.toHex(historicalBytes);
+        synchronized (profiles) {
+            CardLatencyProfile profile = profiles.get(model);
+            if (profile == null) {
+                profile = new CardLatencyProfile(model);
+                profiles.put(model, profile);
+            }
+
+            return profile;
+        }
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * Returns the timeout for the next command with <code>ins</code> and
+     * <code>p2</code>, or <code>defaultMillis</code> if it hasn't been seen
+     * yet.
+     */
+    public synchronized int getTimeoutMillis(int ins, int p2,
+            int defaultMillis) {
+        Estimate estimate = estimates.get(key(ins, p2));
+        long timeoutMillis;
+        int backoff = 0;
+        if (estimate == null || estimate.srtt < 0) {
+            timeoutMillis = defaultMillis;
+        } else {
+            // a slow outlier on a long command, e.g. a private key
+            // operation, shouldn't time out just because the variation
+            // has settled
+            long micros = Math.max(2 * estimate.srtt, estimate.srtt + 4
+                    * estimate.rttvar);
+            timeoutMillis = Math.max(MIN_TIMEOUT_MILLIS, micros / 1000);
+        }
+        if (estimate != null) {
+            backoff = estimate.backoff;
+        }
+        timeoutMillis <<= backoff;
+
+        return (int) Math.min(timeoutMillis, MAX_TIMEOUT_MILLIS);
+    }
+
+    public synchronized void record(int ins, int p2, long nanos) {
+        Estimate estimate = getEstimate(ins, p2);
+        long micros = nanos / 1000;
+        if (estimate.srtt < 0) {
+            estimate.srtt = micros;
+            estimate.rttvar = micros / 2;
+        } else {
+            estimate.rttvar = (3 * estimate.rttvar + Math.abs(estimate.srtt
+                    - micros)) / 4;
+            estimate.srtt = (7 * estimate.srtt + micros) / 8;
+        }
+        estimate.backoff = 0;
+    }
+
+    /**
+     * Records a failed command, doubling its timeout. Lost tags can't be
+     * told apart from timeouts, but the backoff is reset by the next
+     * successful run of the same command.
+     */
+    public synchronized void recordFailure(int ins, int p2) {
+        Estimate estimate = getEstimate(ins, p2);
+        // 2^5 * MIN_TIMEOUT_MILLIS > MAX_TIMEOUT_MILLIS
+        if (estimate.backoff < 5) {
+            estimate.backoff++;
+        }
+    }
+
+    private Estimate getEstimate(int ins, int p2) {
+        Integer key = key(ins, p2);
+        Estimate estimate = estimates.get(key);
+        if (estimate == null) {
+            estimate = new Estimate();
+            estimates.put(key, estimate);
+        }
+
+        return estimate;
+    }
+
+    private static Integer key(int ins, int p2) {
+        return ((ins & 0xff) << 8) | (p2 & 0xff);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("CardLatencyProfile[" + model);
+        for (Map.Entry<Integer, Estimate> e : new TreeMap<Integer, Estimate>(
+                estimates).entrySet()) {
+            Estimate estimate = e.getValue();
+            if (estimate.srtt >= 0) {
+                sb.append(String.format(", %02X/%02X: srtt=%dus rttvar=%dus",
+                        e.getKey() >> 8, e.getKey() & 0xff, estimate.srtt,
+                        estimate.rttvar));
+            }
+        }
+        sb.append(']');
+
+        return sb.toString();
+    }
+
+    private static class Estimate {
+        // smoothed latency and variation in microseconds, -1 if no samples
+        // yet
+        long srtt = -1;
+        long rttvar;
+        int backoff;
+    }
+}
@@ -0,0 +1,45 @@
+package org.nick.nfcsmime;
+
+import java.io.IOException;
+
+/**
+ * Carries raw APDUs to a card. Lets <code>MuscleCard</code> talk to an NFC
+ * tag or to an in-process simulator.
+ */
+public interface CardTransport {
+
+    void connect() throws IOException;
+
+    boolean isConnected();
+
+    void close() throws IOException;
+
+    byte[] transceive(byte[] command) throws IOException;
+
+    /**
+     * Whether the reader side can carry extended length APDUs. The card
+     * still has to be checked separately.
+     */
+    boolean isExtendedLengthSupported();
+
+    /**
+     * Largest command, header included, the reader can send. 0 if unknown.
+     */
+    int getMaxTransceiveLength();
+
+    /**
+     * Sets the timeout for following <code>transceive()</code> calls. Reset
+     * to the default when the connection is closed.
+     */
+    void setTimeout(int timeoutMillis);
+
+    /**
+     * Card UID, <code>null</code> if not available.
+     */
+    byte[] getId();
+
+    /**
+     * Historical bytes from the ATS, <code>null</code> if not available.
+     */
+    byte[] getHistoricalBytes();
+}
@@ -0,0 +1,181 @@
+package org.nick.nfcsmime;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Bounded LRU cache of signer certificates, keyed by card identity. Parsed
+ * certificates are kept in memory, DER encodings are kept on disk so the
+ * cache survives process restarts.
+ */
+public class CertificateCache {
+
+    private static final String TAG = CertificateCache.class.getSimpleName();
+
+    private static final String SUFFIX = ".der";
+
+    private final File dir;
+    private final int maxEntries;
+    private final LinkedHashMap<String, X509Certificate> certs;
+
+    public CertificateCache(File dir, final int maxEntries) {
+        this.dir = dir;
+        this.maxEntries = maxEntries;
+        this.certs = new LinkedHashMap<String, X509Certificate>(16, 0.75f,
+                true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, X509Certificate> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Could not create cache directory: " + dir);
+        }
+    }
+
+    public synchronized X509Certificate get(String cardId) {
+        X509Certificate cert = certs.get(cardId);
+        if (cert != null) {
+            return cert;
+        }
+
+        File f = getFile(cardId);
+        if (!f.exists()) {
+            return null;
+        }
+        try {
+            cert = parse(readFile(f));
+            certs.put(cardId, cert);
+            // LRU order on disk
+            f.setLastModified(System.currentTimeMillis());
+
+            return cert;
+        } catch (Exception e) {
+            Log.w(TAG, "Dropping unreadable cache entry: " + e.getMessage());
+            f.delete();
+
+            return null;
+        }
+    }
+
+    public synchronized void put(String cardId, X509Certificate cert) {
+        certs.put(cardId, cert);
+        try {
+            writeFile(getFile(cardId), cert.getEncoded());
+            trim();
+        } catch (IOException e) {
+            Log.w(TAG, "Error writing cache entry: " + e.getMessage(), e);
+        } catch (CertificateEncodingException e) {
+            Log.w(TAG, "Error writing cache entry: " + e.getMessage(), e);
+        }
+    }
+
+    public synchronized void remove(String cardId) {
+        certs.remove(cardId);
+        getFile(cardId).delete();
+    }
+
+    public synchronized void clear() {
+        certs.clear();
+        File[] files = listFiles();
+        for (File f : files) {
+            f.delete();
+        }
+    }
+
+    private void trim() {
+        File[] files = listFiles();
+        if (files.length <= maxEntries) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length - maxEntries; i++) {
+            files[i].delete();
+        }
+    }
+
+    private File[] listFiles() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+
+        return files;
+    }
+
+    // card IDs contain the UID, don't use them as file names
+    private File getFile(String cardId) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] hash = md.digest(cardId.getBytes("UTF-8"));
+
+            return new File(dir, Hex.toHex(hash) + SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static X509Certificate parse(byte[] der)
+            throws CertificateException {
+        CertificateFactory cf = CertificateFactory.getInstance("X509");
+
+        return (X509Certificate) cf
+                .generateCertificate(new ByteArrayInputStream(der));
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        byte[] result = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        try {
+            int read = 0;
+            while (read < result.length) {
+                int n = in.read(result, read, result.length - read);
+                if (n == -1) {
+                    throw new IOException("Unexpected end of file: " + f);
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+
+        return result;
+    }
+
+    private static void writeFile(File f, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.nick.nfcsmime;
+
+import java.util.Arrays;
+
+/**
+ * Reusable command APDU writer. Header, data and Le are written straight into
+ * a single buffer, Lc is filled in when the command is encoded. Short or
+ * extended length encoding is picked based on the data and Le lengths.
+ */
+public class CommandApdu {
+
+    private static final int HEADER_LEN = 4;
+    // room for an extended Lc (00 | Lc1 | Lc2)
+    private static final int DATA_OFFSET = HEADER_LEN + 3;
+
+    public static final int MAX_SHORT_LC = 255;
+    public static final int MAX_SHORT_LE = 256;
+    public static final int MAX_EXTENDED_LC = 65535;
+    public static final int MAX_EXTENDED_LE = 65536;
+
+    private static final int NO_LE = -1;
+
+    private byte[] buff;
+    private int dataLen;
+    private int le = NO_LE;
+    private boolean forceExtended;
+
+    public CommandApdu() {
+        this(MAX_SHORT_LC);
+    }
+
+    public CommandApdu(int initialDataLen) {
+        this.buff = new byte[DATA_OFFSET + initialDataLen];
+    }
+
+    public CommandApdu start(int cla, int ins, int p1, int p2) {
+        buff[0] = (byte) cla;
+        buff[1] = (byte) ins;
+        buff[2] = (byte) p1;
+        buff[3] = (byte) p2;
+        dataLen = 0;
+        le = NO_LE;
+        forceExtended = false;
+
+        return this;
+    }
+
+    public CommandApdu append(int b) {
+        ensureCapacity(1);
+        buff[DATA_OFFSET + dataLen++] = (byte) b;
+
+        return this;
+    }
+
+    public CommandApdu appendShort(int s) {
+        ensureCapacity(2);
+        buff[DATA_OFFSET + dataLen++] = (byte) (s >> 8);
+        buff[DATA_OFFSET + dataLen++] = (byte) s;
+
+        return this;
+    }
+
+    public CommandApdu appendInt(int i) {
+        ensureCapacity(4);
+        buff[DATA_OFFSET + dataLen++] = (byte) (i >> 24);
+        buff[DATA_OFFSET + dataLen++] = (byte) (i >> 16);
+        buff[DATA_OFFSET + dataLen++] = (byte) (i >> 8);
+        buff[DATA_OFFSET + dataLen++] = (byte) i;
+
+        return this;
+    }
+
+    public CommandApdu append(byte[] data) {
+        return append(data, 0, data.length);
+    }
+
+    public CommandApdu append(byte[] data, int offset, int len) {
+        ensureCapacity(len);
+        System.arraycopy(data, offset, buff, DATA_OFFSET + dataLen, len);
+        dataLen += len;
+
+        return this;
+    }
+
+    /**
+     * Sets the expected response length (Ne). Values above 256 require
+     * extended length encoding.
+     */
+    public CommandApdu le(int le) {
+        if (le < 0 || le > MAX_EXTENDED_LE) {
+            throw new IllegalArgumentException("Invalid Le: " + le);
+        }
+        this.le = le;
+
+        return this;
+    }
+
+    /**
+     * Forces extended length encoding even if the command would fit in a
+     * short APDU.
+     */
+    public CommandApdu extended() {
+        this.forceExtended = true;
+
+        return this;
+    }
+
+    public int getDataLength() {
+        return dataLen;
+    }
+
+    public boolean isExtended() {
+        return forceExtended || dataLen > MAX_SHORT_LC
+                || (le != NO_LE && le > MAX_SHORT_LE);
+    }
+
+    public int length() {
+        int len = HEADER_LEN;
+        boolean extended = isExtended();
+        if (dataLen > 0) {
+            len += (extended ? 3 : 1) + dataLen;
+        }
+        if (le != NO_LE) {
+            if (extended) {
+                // Le is 3 bytes if there is no Lc
+                len += dataLen > 0 ? 2 : 3;
+            } else {
+                len += 1;
+            }
+        }
+
+        return len;
+    }
+
+    /**
+     * Returns the encoded command. This is the only allocation per command,
+     * since <code>IsoDep.transceive()</code> needs an exactly sized array.
+     */
+    public byte[] toByteArray() {
+        byte[] result = new byte[length()];
+        System.arraycopy(buff, 0, result, 0, HEADER_LEN);
+        int idx = HEADER_LEN;
+
+        boolean extended = isExtended();
+        if (dataLen > 0) {
+            if (extended) {
+                result[idx++] = 0x00;
+                result[idx++] = (byte) (dataLen >> 8);
+            }
+            result[idx++] = (byte) dataLen;
+            System.arraycopy(buff, DATA_OFFSET, result, idx, dataLen);
+            idx += dataLen;
+        }
+        if (le != NO_LE) {
+            if (extended) {
+                if (dataLen == 0) {
+                    result[idx++] = 0x00;
+                }
+                // 65536 is encoded as 00 00
+                result[idx++] = (byte) (le >> 8);
+                result[idx++] = (byte) le;
+            } else {
+                // 256 is encoded as 00
+                result[idx++] = (byte) le;
+            }
+        }
+
+        return result;
+    }
+
+    private void ensureCapacity(int len) {
+        int required = dataLen + len;
+        if (required > MAX_EXTENDED_LC) {
+            throw new IllegalArgumentException("APDU data too long: "
+                    + required);
+        }
+        if (DATA_OFFSET + required > buff.length) {
+            buff = Arrays.copyOf(buff,
+                    DATA_OFFSET + Math.max(required, 2 * (buff.length - DATA_OFFSET)));
+        }
+    }
+}
@@ -1,50 +1,154 @@
 package org.nick.nfcsmime;
 
-import java.nio.ByteBuffer;
-
 public class Hex {
 
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // character -> nibble value, -1 for non-hex characters
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            VALUES['A' + i] = (byte) (10 + i);
+            VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
     private Hex() {
     }
 
     public static String toHex(byte[] bytes) {
-        StringBuffer buff = new StringBuffer();
-        for (byte b : bytes) {
-            buff.append(String.format("%02X", b));
+        return toHex(bytes, 0, bytes.length);
+    }
+
+    public static String toHex(byte[] bytes, int offset, int len) {
+        char[] chars = new char[2 * len];
+        encode(bytes, offset, len, chars, 0);
+
+        return new String(chars);
+    }
+
+    /**
+     * Appends <code>len</code> bytes as hex digits to <code>sb</code>.
+     */
+    public static StringBuilder appendHex(StringBuilder sb, byte[] bytes,
+            int offset, int len) {
+        sb.ensureCapacity(sb.length() + 2 * len);
+        for (int i = offset; i < offset + len; i++) {
+            int b = bytes[i] & 0xff;
+            sb.append(DIGITS[b >>> 4]).append(DIGITS[b & 0x0f]);
+        }
+
+        return sb;
+    }
+
+    /**
+     * Encodes <code>len</code> bytes into <code>dest</code>, starting at
+     * <code>destOffset</code>. Returns the number of chars written.
+     */
+    public static int encode(byte[] bytes, int offset, int len, char[] dest,
+            int destOffset) {
+        int idx = destOffset;
+        for (int i = offset; i < offset + len; i++) {
+            int b = bytes[i] & 0xff;
+            dest[idx++] = DIGITS[b >>> 4];
+            dest[idx++] = DIGITS[b & 0x0f];
         }
 
-        return buff.toString();
+        return idx - destOffset;
     }
 
-    public static byte[] fromHex(String digits) {
-        digits = digits.replace(" ", "");
-        final int bytes = digits.length() / 2;
-        if (2 * bytes != digits.length()) {
+    public static byte[] fromHex(CharSequence digits) {
+        int count = countDigits(digits, 0, digits.length());
+        if (count % 2 != 0) {
             throw new IllegalArgumentException(
                     "Hex string must have an even number of digits");
         }
 
-        byte[] result = new byte[bytes];
-        for (int i = 0; i < digits.length(); i += 2) {
-            result[i / 2] = (byte) Integer.parseInt(digits.substring(i, i + 2),
-                    16);
-        }
+        byte[] result = new byte[count / 2];
+        decode(digits, 0, digits.length(), result, 0);
+
         return result;
     }
 
+    /**
+     * Decodes the hex digits in <code>digits[start, end)</code> into
+     * <code>dest</code>, starting at <code>destOffset</code>. Whitespace
+     * between digits is skipped. Returns the number of bytes written.
+     */
+    public static int decode(CharSequence digits, int start, int end,
+            byte[] dest, int destOffset) {
+        int idx = destOffset;
+        int high = -1;
+        for (int i = start; i < end; i++) {
+            char c = digits.charAt(i);
+            if (isWhitespace(c)) {
+                continue;
+            }
+            int value = c < VALUES.length ? VALUES[c] : -1;
+            if (value == -1) {
+                throw new IllegalArgumentException("Invalid hex digit '" + c
+                        + "' at " + i);
+            }
+            if (high == -1) {
+                high = value;
+            } else {
+                dest[idx++] = (byte) ((high << 4) | value);
+                high = -1;
+            }
+        }
+        if (high != -1) {
+            throw new IllegalArgumentException(
+                    "Hex string must have an even number of digits");
+        }
+
+        return idx - destOffset;
+    }
+
     public static byte[] toBytes(int i) {
-        return ByteBuffer.allocate(4).putInt(i).array();
+        return new byte[] { (byte) (i >>> 24), (byte) (i >>> 16),
+                (byte) (i >>> 8), (byte) i };
     }
 
     public static byte[] toBytes(short s) {
-        return ByteBuffer.allocate(2).putShort(s).array();
+        return new byte[] { (byte) (s >>> 8), (byte) s };
     }
 
     public static String toHex(int i) {
-        return toHex(toBytes(i));
+        char[] chars = new char[8];
+        for (int j = 7; j >= 0; j--) {
+            chars[j] = DIGITS[i & 0x0f];
+            i >>>= 4;
+        }
+
+        return new String(chars);
     }
 
     public static String toHex(short s) {
-        return toHex(toBytes(s));
+        int i = s & 0xffff;
+        return new String(new char[] { DIGITS[i >>> 12],
+                DIGITS[(i >>> 8) & 0x0f], DIGITS[(i >>> 4) & 0x0f],
+                DIGITS[i & 0x0f] });
+    }
+
+    private static int countDigits(CharSequence digits, int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (!isWhitespace(digits.charAt(i))) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
     }
 }
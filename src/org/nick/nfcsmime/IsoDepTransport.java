@@ -0,0 +1,68 @@
+package org.nick.nfcsmime;
+
+import java.io.IOException;
+
+import android.nfc.tech.IsoDep;
+import android.os.Build;
+
+public class IsoDepTransport implements CardTransport {
+
+    private IsoDep tag;
+
+    public IsoDepTransport(IsoDep tag) {
+        this.tag = tag;
+    }
+
+    public IsoDep getTag() {
+        return tag;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        tag.connect();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return tag.isConnected();
+    }
+
+    @Override
+    public void close() throws IOException {
+        tag.close();
+    }
+
+    @Override
+    public byte[] transceive(byte[] command) throws IOException {
+        return tag.transceive(command);
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return false;
+        }
+
+        return tag.isExtendedLengthApduSupported();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return tag.getMaxTransceiveLength();
+    }
+
+    @Override
+    public void setTimeout(int timeoutMillis) {
+        tag.setTimeout(timeoutMillis);
+    }
+
+    @Override
+    public byte[] getId() {
+        return tag.getTag().getId();
+    }
+
+    @Override
+    public byte[] getHistoricalBytes() {
+        return tag.getHistoricalBytes();
+    }
+}
@@ -0,0 +1,114 @@
+package org.nick.nfcsmime;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power of two buckets, cheap enough to
+ * record every APDU. Bucket <code>i</code> counts latencies below
+ * <code>2^i</code> microseconds, so percentiles are upper bounds within a
+ * factor of two.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1,
+                64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get())) {
+            if (maxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the current values. Values recorded concurrently
+     * may be partially included.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+
+        return new Snapshot(count.get(), totalNanos.get(), maxNanos.get(),
+                counts);
+    }
+
+    public static class Snapshot {
+
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long[] buckets;
+
+        Snapshot(long count, long totalNanos, long maxNanos, long[] buckets) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.buckets = buckets;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalMicros() {
+            return totalNanos / 1000;
+        }
+
+        public long getMeanMicros() {
+            return count == 0 ? 0 : totalNanos / count / 1000;
+        }
+
+        public long getMaxMicros() {
+            return maxNanos / 1000;
+        }
+
+        /**
+         * Returns an upper bound for the given percentile (0-100), in
+         * microseconds.
+         */
+        public long getPercentileMicros(double percentile) {
+            long total = 0;
+            for (long c : buckets) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(1L << i, getMaxMicros());
+                }
+            }
+
+            return getMaxMicros();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "n=%d mean=%dus p50<=%dus p90<=%dus p99<=%dus max=%dus",
+                    count, getMeanMicros(), getPercentileMicros(50),
+                    getPercentileMicros(90), getPercentileMicros(99),
+                    getMaxMicros());
+        }
+    }
+}
@@ -1,15 +1,12 @@
 package org.nick.nfcsmime;
 
 import java.security.PrivateKey;
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.Properties;
 
-import org.spongycastle.asn1.ASN1EncodableVector;
-import org.spongycastle.asn1.cms.AttributeTable;
-import org.spongycastle.cms.SignerInfoGenerator;
-import org.spongycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.spongycastle.operator.ContentSigner;
 import org.spongycastle.operator.OperatorCreationException;
+import org.spongycastle.operator.jcajce.JcaContentSignerBuilder;
 
 public class LocalKeySmimeSender extends SmimeSender {
 
@@ -30,16 +27,10 @@ public class LocalKeySmimeSender extends SmimeSender {
     }
 
     @Override
-    protected SignerInfoGenerator createSignerInfoGenerator(
-            ASN1EncodableVector signedAttrs) {
+    protected ContentSigner createContentSigner() {
         try {
-            return new JcaSimpleSignerInfoGeneratorBuilder()
-                    .setProvider("AndroidOpenSSL")
-                    .setSignedAttributeGenerator(
-                            new AttributeTable(signedAttrs))
-                    .build("SHA512withRSA", signerPrivateKey, signerCert);
-        } catch (CertificateEncodingException e) {
-            throw new RuntimeException(e);
+            return new JcaContentSignerBuilder("SHA512withRSA").setProvider(
+                    "AndroidOpenSSL").build(signerPrivateKey);
         } catch (OperatorCreationException e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,85 @@
+package org.nick.nfcsmime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+
+/**
+ * An attachment that is streamed into the message when it is written out,
+ * so its size doesn't affect memory use. Attachments created from an
+ * <code>InputStream</code> can only be written once.
+ */
+public class MailAttachment {
+
+    private String fileName;
+    private String contentType;
+    private DataSource dataSource;
+
+    private MailAttachment(String fileName, String contentType,
+            DataSource dataSource) {
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.dataSource = dataSource;
+    }
+
+    public static MailAttachment fromFile(File file, String contentType) {
+        return new MailAttachment(file.getName(), contentType,
+                new FileDataSource(file));
+    }
+
+    public static MailAttachment fromStream(final String fileName,
+            final String contentType, final InputStream in) {
+        return new MailAttachment(fileName, contentType, new DataSource() {
+            private boolean read;
+
+            @Override
+            public synchronized InputStream getInputStream()
+                    throws IOException {
+                if (read) {
+                    throw new IOException("Attachment already written: "
+                            + fileName);
+                }
+                read = true;
+
+                return in;
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                throw new IOException("Read-only data source");
+            }
+
+            @Override
+            public String getContentType() {
+                return contentType;
+            }
+
+            @Override
+            public String getName() {
+                return fileName;
+            }
+        });
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MailAttachment[name=%s, type=%s]", fileName,
+                contentType);
+    }
+}
@@ -0,0 +1,37 @@
+package org.nick.nfcsmime;
+
+public class MailMessage {
+
+    private String from;
+    private String to;
+    private String subject;
+    private String body;
+
+    public MailMessage(String from, String to, String subject, String body) {
+        this.from = from;
+        this.to = to;
+        this.subject = subject;
+        this.body = body;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MailMessage[to=%s, subject=%s]", to, subject);
+    }
+}
@@ -8,6 +8,11 @@ import java.security.Security;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPublicKey;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import org.nick.nfcsmime.SigningService.Lane;
+import org.nick.nfcsmime.SigningService.Stage;
 
 import android.app.Activity;
 import android.app.PendingIntent;
@@ -50,6 +55,15 @@ public class MainActivity extends Activity implements OnClickListener {
 
     private static final boolean DEBUG_SMTP = false;
 
+    private static final int CERT_CACHE_SIZE = 8;
+
+    private static final int WORKER_THREADS = 2;
+    // how long a signature waits for a lost card to be presented again
+    private static final long REATTACH_TIMEOUT_MILLIS = 30 * 1000;
+    // the tag stays connected this long after the last command
+    private static final long CARD_IDLE_MILLIS = 30 * 1000;
+    private static final long CARD_PROBE_INTERVAL_MILLIS = 2 * 1000;
+
     static {
         Security.insertProviderAt(
                 new org.spongycastle.jce.provider.BouncyCastleProvider(), 1);
@@ -74,6 +88,19 @@ public class MainActivity extends Activity implements OnClickListener {
     private KeyPair signerKeyPair;
 
     private MuscleCard msc;
+    // kept between messages so per-signer setup is only done once. Rebuilt
+    // when the card or the imported signer certificate changes.
+    private SmimeSender cardSender;
+    private MuscleCard cardSenderCard;
+    private SmimeSender localSender;
+    private X509Certificate localSenderCert;
+    private CertificateCache certCache;
+    private SigningService signingService;
+    private TagSessionManager tagSessions;
+
+    private boolean importPkcs12Enabled;
+    private boolean sendMailEnabled;
+    private boolean nfcSignEnabled;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -109,9 +136,40 @@ public class MainActivity extends Activity implements OnClickListener {
         filters = new IntentFilter[] { techDiscovered };
         techLists = new String[][] { new String[] { IsoDep.class.getName() } };
 
+        certCache = new CertificateCache(new File(getCacheDir(), "certs"),
+                CERT_CACHE_SIZE);
+        signingService = new SigningService(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                runOnUiThread(command);
+            }
+        }, WORKER_THREADS);
+        // probes share the card lane with signing
+        tagSessions = new TagSessionManager(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                signingService.submit(Lane.CARD, new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        command.run();
+                        return null;
+                    }
+                }, null);
+            }
+        }, CARD_IDLE_MILLIS, CARD_PROBE_INTERVAL_MILLIS);
+        tagSessions.setReattachTimeout(REATTACH_TIMEOUT_MILLIS);
+
         tryLoadFromKeyStore();
     }
 
+    @Override
+    protected void onDestroy() {
+        tagSessions.shutdown();
+        // cancels queued jobs
+        signingService.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public void onPause() {
         super.onPause();
@@ -157,20 +215,29 @@ public class MainActivity extends Activity implements OnClickListener {
                     return;
                 }
 
-                tag.connect();
-                msc = new MuscleCard(tag);
-
-                try {
-                    msc.select();
-
-                    messageText.append("Found MuscleCard");
-                    nfcSignButton.setEnabled(true);
-                } finally {
-                    if (tag != null) {
-                        tag.close();
+                // the connection is kept open for the next send. A
+                // signature waiting for the card resumes right away, the
+                // select below runs after it.
+                msc = tagSessions.attach(new IsoDepTransport(tag));
+                final MuscleCard card = msc;
+                signingService.submit(Lane.CARD, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        card.ensureSelected();
+                        return null;
+                    }
+                }, new SigningService.Callback<Void>() {
+                    @Override
+                    public void onSuccess(Void result) {
+                        messageText.append("Found MuscleCard");
+                        nfcSignButton.setEnabled(true);
                     }
-                }
 
+                    @Override
+                    public void onError(Exception e) {
+                        showError("Error", e);
+                    }
+                });
             }
         } catch (Exception e) {
             Log.e(TAG, "Error: " + e.getMessage(), e);
@@ -179,32 +246,55 @@ public class MainActivity extends Activity implements OnClickListener {
         }
     }
 
-    private void sendMail(boolean signWithCard) throws Exception {
+    private void sendMail(boolean signWithCard) {
         if (!signWithCard && (signerCert == null || caCert == null)) {
-            throw new IllegalStateException("Load signing certificate first");
+            finishTask();
+            showError("Error sending mail", new IllegalStateException(
+                    "Load signing certificate first"));
+            return;
         }
 
-        final SmimeSender sender = createSender(signWithCard);
-        final String fromAddress = sender.getSignerRfc822Name();
-        runOnUiThread(new Runnable() {
+        final SmimeSender sender = getSender(signWithCard);
+        final String to = toText.getText().toString();
+        final String subject = subjectText.getText().toString();
+        final String body = bodyText.getText().toString();
+        // reads the certificate from the card, if signing with the card
+        signingService.submit(Lane.CARD, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return sender.getSignerRfc822Name();
+            }
+        }, new UiCallback<String>("Error sending mail") {
             @Override
-            public void run() {
+            public void onSuccess(String fromAddress) {
                 fromText.setText(fromAddress);
+                signingService.sendMail(sender, new MailMessage(fromAddress,
+                        to, subject, body), new UiCallback<Void>(
+                        "Error sending mail"));
             }
         });
-
-        sender.sendMail(fromAddress, toText.getText().toString(), subjectText
-                .getText().toString(), bodyText.getText().toString());
     }
 
-    private SmimeSender createSender(boolean signWithCard) {
+    private SmimeSender getSender(boolean signWithCard) {
         if (signWithCard) {
-            return new MuscleCardSmimeSender(createGmailProps(), GMAIL_ACCOUNT,
-                    GMAIL_PASSWORD, msc, MUSCLE_PIN);
+            if (cardSender == null || cardSenderCard != msc) {
+                cardSender = new MuscleCardSmimeSender(createGmailProps(),
+                        GMAIL_ACCOUNT, GMAIL_PASSWORD, msc, MUSCLE_PIN,
+                        certCache);
+                cardSenderCard = msc;
+            }
+
+            return cardSender;
+        }
+
+        if (localSender == null || localSenderCert != signerCert) {
+            localSender = new LocalKeySmimeSender(createGmailProps(),
+                    GMAIL_ACCOUNT, GMAIL_PASSWORD, signerCert,
+                    signerKeyPair.getPrivate());
+            localSenderCert = signerCert;
         }
 
-        return new LocalKeySmimeSender(createGmailProps(), GMAIL_ACCOUNT,
-                GMAIL_PASSWORD, signerCert, signerKeyPair.getPrivate());
+        return localSender;
     }
 
     private Properties createGmailProps() {
@@ -225,89 +315,104 @@ public class MainActivity extends Activity implements OnClickListener {
 
     @Override
     public void onClick(final View v) {
-        new AsyncTask<Void, Void, Void>() {
+        setProgressBarIndeterminateVisibility(true);
+        disableButtons();
+        switch (v.getId()) {
+        case R.id.import_pkcs12_button:
+            messageText.setText("Importing PKCS#12 file...");
+            signingService.submit(Lane.WORKER, new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return readFile(PKCS12_FILENAME);
+                }
+            }, new UiCallback<byte[]>("Error importing PKCS#12 file") {
+                @Override
+                public void onSuccess(byte[] p12) {
+                    super.onSuccess(p12);
+                    Intent intent = KeyChain.createInstallIntent();
+                    intent.putExtra(KeyChain.EXTRA_PKCS12, p12);
+                    intent.putExtra(KeyChain.EXTRA_NAME, SMIME_CERT_ALIAS);
+                    startActivityForResult(intent, PKCS12_IMPORT_REQUEST_CODE);
+                }
+            });
+            break;
+        case R.id.send_mail_button:
+            sendMail(false);
+            break;
+        case R.id.send_mail_nfc_button:
+            sendMail(true);
+            break;
+        }
+    }
 
-            Exception error;
+    private void disableButtons() {
+        importPkcs12Enabled = importPkcs12Button.isEnabled();
+        sendMailEnabled = sendMailButton.isEnabled();
+        nfcSignEnabled = nfcSignButton.isEnabled();
 
-            boolean importPkcs12Enabled;
-            boolean sendMailEnabled;
-            boolean nfcSignEnabled;
+        importPkcs12Button.setEnabled(false);
+        sendMailButton.setEnabled(false);
+        nfcSignButton.setEnabled(false);
+    }
 
-            @Override
-            public void onPreExecute() {
-                setProgressBarIndeterminateVisibility(true);
-                disableButtons();
-                switch (v.getId()) {
-                case R.id.import_pkcs12_button:
-                    messageText.setText("Importing PKCS#12 file...");
-                    break;
-                case R.id.send_mail_button:
-                case R.id.send_mail_nfc_button:
-                    messageText.setText("Sending signed email...");
-                    break;
-                }
-            }
+    private void enableButtons() {
+        importPkcs12Button.setEnabled(importPkcs12Enabled);
+        sendMailButton.setEnabled(sendMailEnabled);
+        nfcSignButton.setEnabled(nfcSignEnabled);
+    }
 
-            @Override
-            protected Void doInBackground(Void... arg0) {
-                try {
-                    switch (v.getId()) {
-                    case R.id.import_pkcs12_button:
-                        final byte[] p12 = readFile(PKCS12_FILENAME);
-
-                        runOnUiThread(new Runnable() {
-                            public void run() {
-                                Intent intent = KeyChain.createInstallIntent();
-                                intent.putExtra(KeyChain.EXTRA_PKCS12, p12);
-                                intent.putExtra(KeyChain.EXTRA_NAME,
-                                        SMIME_CERT_ALIAS);
-                                startActivityForResult(intent, 42);
-                            }
-                        });
-                        break;
-                    case R.id.send_mail_button:
-                        sendMail(false);
-                        break;
-                    case R.id.send_mail_nfc_button:
-                        sendMail(true);
-                        break;
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Error sending mail: " + e.getMessage(), e);
-                    error = e;
-                }
+    private void finishTask() {
+        setProgressBarIndeterminateVisibility(false);
+        enableButtons();
+        messageText.setText("");
+    }
 
-                return null;
-            }
+    private void showError(String message, Exception e) {
+        Log.e(TAG, message + ": " + e.getMessage(), e);
+        Toast.makeText(MainActivity.this, message + ": " + e.getMessage(),
+                Toast.LENGTH_LONG).show();
+    }
 
-            private void disableButtons() {
-                importPkcs12Enabled = importPkcs12Button.isEnabled();
-                sendMailEnabled = sendMailButton.isEnabled();
-                nfcSignEnabled = nfcSignButton.isEnabled();
+    /**
+     * Shows job progress and restores the UI when the job is done.
+     */
+    private class UiCallback<T> extends SigningService.Callback<T> {
 
-                importPkcs12Button.setEnabled(false);
-                sendMailButton.setEnabled(false);
-                nfcSignButton.setEnabled(false);
-            }
+        private final String errorMessage;
 
-            private void enableButtons() {
-                importPkcs12Button.setEnabled(importPkcs12Enabled);
-                sendMailButton.setEnabled(sendMailEnabled);
-                nfcSignButton.setEnabled(nfcSignEnabled);
+        UiCallback(String errorMessage) {
+            this.errorMessage = errorMessage;
+        }
+
+        @Override
+        public void onProgress(Stage stage) {
+            switch (stage) {
+            case SIGNING:
+                messageText.setText("Signing email...");
+                break;
+            case SENDING:
+                messageText.setText("Sending signed email...");
+                break;
+            default:
+                break;
             }
+        }
 
-            public void onPostExecute(Void result) {
-                setProgressBarIndeterminateVisibility(false);
-                enableButtons();
-                messageText.setText("");
+        @Override
+        public void onSuccess(T result) {
+            finishTask();
+        }
 
-                if (error != null) {
-                    Toast.makeText(MainActivity.this,
-                            "Error sending mail: " + error.getMessage(),
-                            Toast.LENGTH_LONG).show();
-                }
-            }
-        }.execute();
+        @Override
+        public void onError(Exception e) {
+            finishTask();
+            showError(errorMessage, e);
+        }
+
+        @Override
+        public void onCancelled() {
+            finishTask();
+        }
     }
 
     private void loadCertificateFromKeyStore() {
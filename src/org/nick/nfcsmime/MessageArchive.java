@@ -0,0 +1,133 @@
+package org.nick.nfcsmime;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Asynchronous archive of sent messages, for audits. Messages are written
+ * on a background thread, one file per message, and the oldest files are
+ * deleted once the archive holds more than <code>maxFiles</code> files or
+ * <code>maxBytes</code> bytes. If the writer falls behind, new messages are
+ * dropped rather than delaying the sender.
+ */
+public class MessageArchive {
+
+    private static final String TAG = MessageArchive.class.getSimpleName();
+
+    private static final String PREFIX = "signed-";
+    private static final String SUFFIX = ".eml";
+
+    private static final int MAX_QUEUED = 32;
+
+    private final File dir;
+    private final int maxFiles;
+    private final long maxBytes;
+    private final ThreadPoolExecutor executor;
+
+    private long seq;
+
+    public MessageArchive(File dir, int maxFiles, long maxBytes) {
+        this.dir = dir;
+        this.maxFiles = maxFiles;
+        this.maxBytes = maxBytes;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                        MAX_QUEUED));
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Could not create archive directory: " + dir);
+        }
+    }
+
+    /**
+     * Queues an encoded message for writing. Never blocks, the caller must
+     * not modify <code>encodedMessage</code> afterwards.
+     */
+    public void add(final byte[] encodedMessage) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(encodedMessage);
+                        trim();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Error archiving message: " + e.getMessage(),
+                                e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Archive queue full or closed, message not archived");
+        }
+    }
+
+    /**
+     * Writes any queued messages and stops the writer thread.
+     */
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    private void write(byte[] encodedMessage) throws IOException {
+        // sequence number keeps names unique and ordered within a millisecond
+        File f = new File(dir, String.format("%s%d-%04d%s", PREFIX,
+                System.currentTimeMillis(), seq++ % 10000, SUFFIX));
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer buff = ByteBuffer.wrap(encodedMessage);
+            while (buff.hasRemaining()) {
+                channel.write(buff);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (files.length <= maxFiles && total <= maxBytes) {
+            return;
+        }
+
+        // names start with the timestamp
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return lhs.getName().compareTo(rhs.getName());
+            }
+        });
+        int count = files.length;
+        for (int i = 0; i < files.length
+                && (count > maxFiles || total > maxBytes); i++) {
+            if (!files[i].getName().startsWith(PREFIX)) {
+                continue;
+            }
+            long len = files[i].length();
+            if (files[i].delete()) {
+                count--;
+                total -= len;
+            }
+        }
+    }
+}
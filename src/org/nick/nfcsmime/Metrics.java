@@ -0,0 +1,254 @@
+package org.nick.nfcsmime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import android.util.Log;
+
+/**
+ * Latency and traffic counters for card I/O and the signing and sending
+ * stages. Recording is a few atomic updates, so metrics are on by default.
+ * Values are cumulative since the process started.
+ */
+public class Metrics {
+
+    private static final String TAG = Metrics.class.getSimpleName();
+
+    public enum Stage {
+        // reading the signer certificate (cache or card)
+        CERT_FETCH,
+        // signer info generator and content signer setup
+        SIGNER_SETUP,
+        // building the MIME message and the signed multipart
+        MIME_GENERATE,
+        // computing the signature (card or local key)
+        SIGNATURE,
+        // writing out the signed message, excluding SIGNATURE
+        SERIALIZE,
+        // SMTP connect and AUTH
+        TRANSPORT_CONNECT,
+        // SMTP transaction for a single message
+        TRANSPORT_SEND
+    }
+
+    private static final int INS_COUNT = 256;
+
+    private static final Metrics DEFAULT = new Metrics();
+
+    private volatile boolean enabled = true;
+
+    private final AtomicLongArray apduCounts = new AtomicLongArray(INS_COUNT);
+    private final AtomicLongArray apduBytesOut = new AtomicLongArray(
+            INS_COUNT);
+    private final AtomicLongArray apduBytesIn = new AtomicLongArray(INS_COUNT);
+    private final AtomicReferenceArray<LatencyHistogram> apduLatency = new AtomicReferenceArray<LatencyHistogram>(
+            INS_COUNT);
+    private final LatencyHistogram[] stageLatency = new LatencyHistogram[Stage
+            .values().length];
+
+    private ScheduledExecutorService dumpExecutor;
+
+    public Metrics() {
+        for (int i = 0; i < stageLatency.length; i++) {
+            stageLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Returns the process-wide instance used unless a component is given
+     * its own.
+     */
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Records one command/response pair, <code>ins</code> is the command's
+     * INS byte.
+     */
+    public void recordApdu(int ins, int bytesOut, int bytesIn, long nanos) {
+        if (!enabled) {
+            return;
+        }
+        ins &= 0xff;
+        apduCounts.incrementAndGet(ins);
+        apduBytesOut.addAndGet(ins, bytesOut);
+        apduBytesIn.addAndGet(ins, bytesIn);
+        LatencyHistogram histogram = apduLatency.get(ins);
+        if (histogram == null) {
+            apduLatency.compareAndSet(ins, null, new LatencyHistogram());
+            histogram = apduLatency.get(ins);
+        }
+        histogram.record(nanos);
+    }
+
+    public void recordStage(Stage stage, long nanos) {
+        if (enabled) {
+            stageLatency[stage.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * Records the time since <code>startNanos</code> for <code>stage</code>
+     * and returns the current time, to start timing the next stage.
+     */
+    public long lap(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        recordStage(stage, now - startNanos);
+
+        return now;
+    }
+
+    public Snapshot snapshot() {
+        List<ApduStats> apdus = new ArrayList<ApduStats>();
+        for (int ins = 0; ins < INS_COUNT; ins++) {
+            LatencyHistogram histogram = apduLatency.get(ins);
+            if (histogram != null) {
+                apdus.add(new ApduStats(ins, apduCounts.get(ins),
+                        apduBytesOut.get(ins), apduBytesIn.get(ins),
+                        histogram.snapshot()));
+            }
+        }
+        Map<Stage, LatencyHistogram.Snapshot> stages = new EnumMap<Stage, LatencyHistogram.Snapshot>(
+                Stage.class);
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, stageLatency[stage.ordinal()].snapshot());
+        }
+
+        return new Snapshot(apdus, stages);
+    }
+
+    /**
+     * Logs a snapshot every <code>periodMillis</code> until
+     * {@link #stopPeriodicDump()} is called.
+     */
+    public synchronized void startPeriodicDump(long periodMillis) {
+        stopPeriodicDump();
+        dumpExecutor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "metrics-dump");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        dumpExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                dump();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopPeriodicDump() {
+        if (dumpExecutor != null) {
+            dumpExecutor.shutdown();
+            dumpExecutor = null;
+        }
+    }
+
+    public void dump() {
+        for (String line : snapshot().toString().split("\n")) {
+            Log.i(TAG, line);
+        }
+    }
+
+    public static class ApduStats {
+
+        private final int ins;
+        private final long count;
+        private final long bytesOut;
+        private final long bytesIn;
+        private final LatencyHistogram.Snapshot latency;
+
+        ApduStats(int ins, long count, long bytesOut, long bytesIn,
+                LatencyHistogram.Snapshot latency) {
+            this.ins = ins;
+            this.count = count;
+            this.bytesOut = bytesOut;
+            this.bytesIn = bytesIn;
+            this.latency = latency;
+        }
+
+        public int getIns() {
+            return ins;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("INS %02X: count=%d out=%dB in=%dB %s", ins,
+                    count, bytesOut, bytesIn, latency);
+        }
+    }
+
+    public static class Snapshot {
+
+        private final List<ApduStats> apdus;
+        private final Map<Stage, LatencyHistogram.Snapshot> stages;
+
+        Snapshot(List<ApduStats> apdus,
+                Map<Stage, LatencyHistogram.Snapshot> stages) {
+            this.apdus = Collections.unmodifiableList(apdus);
+            this.stages = Collections.unmodifiableMap(stages);
+        }
+
+        public List<ApduStats> getApduStats() {
+            return apdus;
+        }
+
+        public LatencyHistogram.Snapshot getStage(Stage stage) {
+            return stages.get(stage);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (ApduStats apdu : apdus) {
+                sb.append(apdu).append('\n');
+            }
+            for (Map.Entry<Stage, LatencyHistogram.Snapshot> e : stages
+                    .entrySet()) {
+                if (e.getValue().getCount() > 0) {
+                    sb.append(e.getKey()).append(": ").append(e.getValue())
+                            .append('\n');
+                }
+            }
+
+            return sb.toString();
+        }
+    }
+}
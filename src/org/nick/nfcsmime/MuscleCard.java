@@ -1,15 +1,14 @@
 package org.nick.nfcsmime;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-import org.spongycastle.asn1.ASN1Encoding;
-import org.spongycastle.asn1.x509.AlgorithmIdentifier;
-import org.spongycastle.asn1.x509.DigestInfo;
-import org.spongycastle.util.Arrays;
-
+import android.nfc.TagLostException;
 import android.nfc.tech.IsoDep;
 import android.util.Log;
 
@@ -17,96 +16,437 @@ public class MuscleCard {
 
     private static final String TAG = MuscleCard.class.getSimpleName();
 
-    private static final boolean DEBUG = true;
-
     private static final short SW_SUCCESS = (short) 0x9000;
+    private static final short SW_UNSUPPORTED_FEATURE = (short) 0x9C05;
+    private static final short SW_UNAUTHORIZED = (short) 0x9C06;
+    private static final short SW_OBJECT_NOT_FOUND = (short) 0x9C07;
+    private static final short SW_OBJECT_EXISTS = (short) 0x9C08;
+    private static final short SW_SEQUENCE_END = (short) 0x9C12;
+    private static final short SW_INVALID_PARAMETER = (short) 0x9C0F;
+    private static final short SW_WRONG_LENGTH = (short) 0x6700;
+    private static final short SW_INS_NOT_SUPPORTED = (short) 0x6D00;
+    private static final short SW_CLA_NOT_SUPPORTED = (short) 0x6E00;
+
+    private static final int CLA_ISO = 0x00;
+    private static final int CLA_MUSCLE = 0xB0;
+
+    private static final int INS_SELECT = 0xA4;
+    private static final int INS_GET_RESPONSE = 0xC0;
+    private static final int INS_VERIFY_PIN = 0x42;
+    private static final int INS_COMPUTE_CRYPT = 0x36;
+    private static final int INS_CREATE_OBJECT = 0x5A;
+    private static final int INS_DELETE_OBJECT = 0x52;
+    private static final int INS_UPDATE_OBJECT = 0x54;
+    private static final int INS_READ_OBJECT = 0x56;
+    private static final int INS_LIST_OBJECTS = 0x58;
+    private static final int INS_GET_STATUS = 0x3C;
 
-    private static final String MUSCLE_AID = "A0 00 00 00 01 01";
-    private static final String INPUT_OBJ_ID = "FF FF FF FF";
-    private static final String OUTPUT_OBJ_ID = "FF FF FF FE";
+    private static final byte[] MUSCLE_AID = { (byte) 0xA0, 0x00, 0x00, 0x00,
+            0x01, 0x01 };
+    // COMPUTE CRYPT with data location 'object' reads from IN, writes to OUT
+    private static final int IN_OBJ_ID = 0xFFFFFFFE;
+    private static final int OUT_OBJ_ID = 0xFFFFFFFF;
+    private static final short SCRATCH_OBJ_ACL = 0x2;
 
-    private static final String CERT_OBJECT_ID = "50 15 31 00";
-    private static final int CERT_SIZE = 727;
+    private static final int CERT_OBJECT_ID = 0x50153100;
+
+    private static final int LIST_FIRST = 0x00;
+    private static final int LIST_NEXT = 0x01;
+    // objectId | size | readAcl | writeAcl | deleteAcl
+    private static final int OBJECT_INFO_LEN = 14;
+    // versions | memory | PINs | keys | logged identities
+    private static final int STATUS_LEN = 16;
+
+    private static final int DER_SEQUENCE = 0x30;
+
+    private static final int SHA512_LEN = 64;
+    private static final int KEY_SIZE = 2048;
 
     private static final int MAX_READ = 255;
-    private static final int MAX_SEND = 255;
+    // the applet's object I/O length field is one byte
+    private static final int MAX_OBJECT_WRITE = 255;
+    // objectId | offset | dataLen
+    private static final int OBJECT_IO_HEADER_LEN = 9;
+    // CLA | INS | P1 | P2
+    private static final int APDU_HEADER_LEN = 4;
+
+    // used until a latency profile has samples for the command. RSA 2048
+    // takes well over a second on some cards.
+    private static final int DEFAULT_TIMEOUT_MILLIS = 1000;
+    private static final int CRYPT_TIMEOUT_MILLIS = 5000;
+    // timeouts are rounded up to this, so the NFC service isn't called
+    // for every small change in the estimate
+    private static final int TIMEOUT_STEP_MILLIS = 250;
+
+    // data location: APDU (0x1), object (0x2)
+    private static final int DL_APDU = 0x01;
+    private static final int DL_OBJECT = 0x02;
+    // data location | len
+    private static final int INLINE_HEADER_LEN = 3;
+
+    // COMPUTE CRYPT operations (P2)
+    private static final int OP_INIT = 0x01;
+    private static final int OP_PROCESS = 0x02;
+    private static final int OP_FINAL = 0x03;
+
+    // historical bytes: category indicator, card capabilities tag
+    private static final int CATEGORY_STATUS_LAST = 0x00;
+    private static final int CATEGORY_COMPACT_TLV = 0x80;
+    private static final int TAG_CARD_CAPABILITIES = 0x7;
+    private static final int CAPS_EXTENDED_LENGTH = 0x40;
+
+    public static class ObjectInfo {
+
+        private int id;
+        private int size;
+
+        ObjectInfo(int id, int size) {
+            this.id = id;
+            this.size = size;
+        }
 
-    private IsoDep tag;
+        public int getId() {
+            return id;
+        }
+
+        public int getSize() {
+            return size;
+        }
+    }
+
+    // only replaced on the thread talking to the card
+    private volatile CardTransport transport;
+    // set by reattach(), taken up before the next command. Guarded by
+    // attachLock, like attachCount.
+    private CardTransport pendingTransport;
+    // incremented by reattach()
+    private int attachCount;
+    private final Object attachLock = new Object();
+    private long reattachTimeoutMillis;
+    private Metrics metrics = Metrics.getDefault();
+    private final ApduTrace trace = new ApduTrace();
+    private CommandApdu apdu = new CommandApdu();
+    private Boolean extendedLength;
+    private boolean inlineCrypt = true;
+    // size of the IN/OUT objects on the card, 0 if not allocated yet.
+    // Objects outlive the connection, so this is tracked per card.
+    private int scratchObjectSize;
+    // PKCS#1 encryption block, reused for every signature
+    private byte[] encryptionBlock = new byte[KEY_SIZE / 8];
+
+    private MuscleCardSession session;
+    private CardLatencyProfile latencyProfile;
+    // timeout currently set on the transport, 0 if the default
+    private int timeoutMillis;
+    // kept across sessions to restore the PIN state after a reconnect
+    private String pin;
+    private volatile long lastUsedNanos = System.nanoTime();
 
     public MuscleCard(IsoDep tag) {
-        this.tag = tag;
+        this(new IsoDepTransport(tag));
     }
 
-    public void select() throws IOException {
-        connect();
+    public MuscleCard(CardTransport transport) {
+        this.transport = transport;
+    }
+
+    public MuscleCardSession getSession() {
+        return session;
+    }
 
-        String cmd = String.format("00 A4 04 00 %02x %s",
-                byteLength(MUSCLE_AID), MUSCLE_AID);
-        ResponseApdu rapdu = transceive(cmd);
-        Log.d(TAG, "SELECT: " + rapdu.toString());
+    /**
+     * Continues with a new connection to the card, e.g. after it was lost
+     * and presented again. A signature waiting in <code>signDigest()</code>
+     * resumes where it stopped if this is the same card. For a different
+     * card, all per-card state is dropped and the signature starts over.
+     *
+     * Safe to call from any thread, including while a command is in flight:
+     * the new connection is only taken up before the next command, on the
+     * thread that sends it.
+     */
+    public void reattach(CardTransport transport) {
+        synchronized (attachLock) {
+            pendingTransport = transport;
+            attachCount++;
+            attachLock.notifyAll();
+        }
+    }
+
+    // switches to the transport passed to reattach(), if any. Called on the
+    // thread talking to the card before it uses any per-card state.
+    private void takePendingTransport() {
+        CardTransport pending;
+        synchronized (attachLock) {
+            pending = pendingTransport;
+            pendingTransport = null;
+        }
+        if (pending == null) {
+            return;
+        }
+
+        String oldIdentity = getIdentity(transport);
+        transport = pending;
+        String newIdentity = getIdentity(pending);
+        if (oldIdentity == null || !oldIdentity.equals(newIdentity)) {
+            scratchObjectSize = 0;
+            extendedLength = null;
+            inlineCrypt = true;
+            latencyProfile = null;
+            // don't try another card's PIN when restoring the login
+            pin = null;
+        }
+        session = null;
+        timeoutMillis = 0;
+    }
+
+    /**
+     * How long <code>signDigest()</code> waits for <code>reattach()</code>
+     * after the card was lost. 0 (the default) fails right away.
+     */
+    public void setReattachTimeout(long reattachTimeoutMillis) {
+        this.reattachTimeoutMillis = reattachTimeoutMillis;
+    }
+
+    /**
+     * Returns the APDU trace for this card, off by default.
+     */
+    public ApduTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Sets where APDU counts and latencies are recorded, the default is
+     * {@link Metrics#getDefault()}.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the command latencies learned for this card's model,
+     * <code>null</code> before the first command.
+     */
+    public CardLatencyProfile getLatencyProfile() {
+        return latencyProfile;
+    }
+
+    /**
+     * Milliseconds since the last command, not counting presence checks.
+     */
+    public long getIdleMillis() {
+        return (System.nanoTime() - lastUsedNanos) / 1000000;
+    }
+
+    /**
+     * Checks that the card is still in the field with a single GET STATUS.
+     * Unlike other commands, the applet is not reselected if it was
+     * deselected, only the session is updated. Returns <code>false</code> if
+     * there is no connection or the card is gone.
+     */
+    public boolean isPresent() {
+        synchronized (attachLock) {
+            // just presented
+            if (pendingTransport != null) {
+                return true;
+            }
+        }
+        if (session == null || !transport.isConnected()) {
+            return false;
+        }
+
+        // a probe doesn't count as use
+        long lastUsed = lastUsedNanos;
+        try {
+            apdu.start(CLA_MUSCLE, INS_GET_STATUS, 0x00, 0x00).le(STATUS_LEN);
+            short sw = send(apdu.toByteArray()).getSW();
+            if (sw == SW_CLA_NOT_SUPPORTED || sw == SW_INS_NOT_SUPPORTED) {
+                session.invalidate();
+            }
+
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            lastUsedNanos = lastUsed;
+        }
+    }
+
+    public void select() throws IOException {
+        apdu.start(CLA_ISO, INS_SELECT, 0x04, 0x00).append(MUSCLE_AID);
+        ResponseApdu rapdu = send(apdu.toByteArray());
         checkSw(rapdu);
+        session.selected();
     }
 
-    public boolean verifyPin(String pin) throws IOException {
+    /**
+     * Selects the applet unless it is already selected in the current
+     * session.
+     */
+    public void ensureSelected() throws IOException {
         connect();
-
-        String cmd = String.format("B0 42 01 00 %02x %s", pin.length(),
-                Hex.toHex(pin.getBytes("ASCII")));
-        ResponseApdu rapdu = transceive(cmd);
-        if (DEBUG) {
-            Log.d(TAG, "VERIFY PIN: " + rapdu.toString());
+        if (!session.isSelected()) {
+            select();
         }
+    }
+
+    public boolean verifyPin(String pin) throws IOException {
+        apdu.start(CLA_MUSCLE, INS_VERIFY_PIN, 0x01, 0x00).append(
+                pin.getBytes("ASCII"));
+        ResponseApdu rapdu = send(apdu.toByteArray());
         if (rapdu.getSW() != SW_SUCCESS) {
             Log.e(TAG, "Error reponse: " + Integer.toString(rapdu.getSW(), 16));
+            session.pinVerified(false);
+            this.pin = null;
             // throw new MuscleException(rapdu.getSW());
             return false;
         }
+        session.pinVerified(true);
+        this.pin = pin;
 
         return true;
     }
 
+    /**
+     * Selects the applet and verifies the PIN, skipping whatever the current
+     * session has already done.
+     */
+    public boolean ensurePinVerified(String pin) throws IOException {
+        ensureSelected();
+        if (session.isPinVerified() && pin.equals(this.pin)) {
+            return true;
+        }
+
+        return verifyPin(pin);
+    }
+
     private void computeCryptInit() throws IOException {
-        connect();
+        checkSw(sendComputeCryptInit());
+    }
 
+    private ResponseApdu sendComputeCryptInit() throws IOException {
         // key 0x1, RSA_NOPAD
-        String cmd = "B0 36 00 01 05 00 04 01 00 00 02";
-        ResponseApdu rapdu = transceive(cmd);
-        if (DEBUG) {
-            Log.d(TAG, "COMPUTE CRYPT INIT: " + rapdu.toString());
-        }
-        checkSw(rapdu);
+        apdu.start(CLA_MUSCLE, INS_COMPUTE_CRYPT, 0x00, OP_INIT)
+                .append(new byte[] { 0x00, 0x04, 0x01, 0x00, 0x00 }).le(0x02);
+
+        return transceive(apdu);
     }
 
     private void computeCryptFinal() throws IOException {
-        connect();
+        apdu.start(CLA_MUSCLE, INS_COMPUTE_CRYPT, 0x00, OP_FINAL).append(
+                DL_OBJECT);
+        ResponseApdu rapdu = transceive(apdu);
+        checkSw(rapdu);
+    }
 
-        // data location: object (0x2)
-        String cmd = "B0 36 00 03 01 02";
-        ResponseApdu rapdu = transceive(cmd);
-        if (DEBUG) {
-            Log.d(TAG, "COMPUTE CRYPT FINAL: " + rapdu.toString());
+    // returns null if the card can't process the block in the APDU
+    private byte[] computeCryptFinal(byte[] block) throws IOException {
+        // data location | len | data, response is len | data
+        apdu.start(CLA_MUSCLE, INS_COMPUTE_CRYPT, 0x00, OP_FINAL)
+                .append(DL_APDU).appendShort(block.length).append(block)
+                .le(block.length + 2).extended();
+        ResponseApdu rapdu = transceive(apdu);
+        if (isInlineCryptRejected(rapdu)) {
+            return null;
         }
         checkSw(rapdu);
+
+        int len = rapdu.asByteBuffer().getShort(0) & 0xffff;
+        byte[] signature = new byte[len];
+        rapdu.copyData(2, signature, 0, len);
+
+        return signature;
     }
 
-    public void createObject(String id, int size, short readAcl,
-            short writeAcl, short delAcl) throws IOException {
-        connect();
+    // short APDU variant of computeCryptFinal(byte[]): the block is sent in
+    // PROCESS and FINAL commands and the response is fetched with GET
+    // RESPONSE if it doesn't fit. Returns null if the card can't process the
+    // block in the APDU.
+    private byte[] computeCryptChained(byte[] block) throws IOException {
+        int chunkLen = getMaxCommandData(false, true) - INLINE_HEADER_LEN;
+        int offset = 0;
+        while (block.length - offset > chunkLen) {
+            apdu.start(CLA_MUSCLE, INS_COMPUTE_CRYPT, 0x00, OP_PROCESS)
+                    .append(DL_APDU).appendShort(chunkLen)
+                    .append(block, offset, chunkLen);
+            ResponseApdu rapdu = transceive(apdu);
+            if (isInlineCryptRejected(rapdu)) {
+                return null;
+            }
+            checkSw(rapdu);
+            offset += chunkLen;
+        }
+
+        int len = block.length - offset;
+        apdu.start(CLA_MUSCLE, INS_COMPUTE_CRYPT, 0x00, OP_FINAL)
+                .append(DL_APDU).appendShort(len).append(block, offset, len)
+                .le(CommandApdu.MAX_SHORT_LE);
+        ResponseApdu rapdu = transceive(apdu);
+        if (isInlineCryptRejected(rapdu)) {
+            return null;
+        }
+
+        // len | data, possibly split across several responses
+        byte[] signature = null;
+        int received = 0;
+        while (true) {
+            if (!rapdu.isDataRemaining()) {
+                checkSw(rapdu);
+            }
+            int skip = 0;
+            if (signature == null) {
+                if (rapdu.getDataLength() < 2) {
+                    throw new MuscleException("Invalid COMPUTE CRYPT response");
+                }
+                signature = new byte[rapdu.asByteBuffer().getShort(0) & 0xffff];
+                skip = 2;
+            }
+            int dataLen = rapdu.getDataLength() - skip;
+            if (received + dataLen > signature.length) {
+                throw new MuscleException("COMPUTE CRYPT response too long");
+            }
+            rapdu.copyData(skip, signature, received, dataLen);
+            received += dataLen;
+            if (!rapdu.isDataRemaining()) {
+                break;
+            }
 
-        String cmd = String.format("B0 5A 00 00 0E %s %s %s %s %s", id,
-                Hex.toHex(size), Hex.toHex(readAcl), Hex.toHex(writeAcl),
-                Hex.toHex(delAcl));
-        ResponseApdu rapdu = transceive(cmd);
-        if (DEBUG) {
-            Log.d(TAG, "CREATE OBJECT: " + rapdu.toString());
+            int remaining = rapdu.getRemainingDataLength() & 0xff;
+            apdu.start(CLA_ISO, INS_GET_RESPONSE, 0x00, 0x00).le(
+                    remaining == 0 ? CommandApdu.MAX_SHORT_LE : remaining);
+            rapdu = transceive(apdu);
         }
+        if (received != signature.length) {
+            throw new MuscleException("Short COMPUTE CRYPT response: "
+                    + received + ", expected " + signature.length);
+        }
+
+        return signature;
+    }
+
+    // applets report unsupported in-APDU crypt in different ways (9C05,
+    // 9C0F, 6700, 6F00...), so any error counts, except lost applet or
+    // login state, which transceive() has already tried to restore
+    private static boolean isInlineCryptRejected(ResponseApdu rapdu) {
+        short sw = rapdu.getSW();
+        if (sw == SW_SUCCESS || rapdu.isDataRemaining()) {
+            return false;
+        }
+
+        return sw != SW_UNAUTHORIZED && sw != SW_CLA_NOT_SUPPORTED
+                && sw != SW_INS_NOT_SUPPORTED;
+    }
+
+    public void createObject(int id, int size, short readAcl,
+            short writeAcl, short delAcl) throws IOException {
+        apdu.start(CLA_MUSCLE, INS_CREATE_OBJECT, 0x00, 0x00).appendInt(id)
+                .appendInt(size).appendShort(readAcl).appendShort(writeAcl)
+                .appendShort(delAcl);
+        ResponseApdu rapdu = transceive(apdu);
         checkSw(rapdu);
     }
 
-    public void updateObject(String objectId, int offset, byte[] data)
+    public void updateObject(int objectId, int offset, byte[] data)
             throws IOException {
-        connect();
-
         // len | data
         byte[] buff = new byte[data.length + 2];
         short dataLen = (short) data.length;
@@ -114,153 +454,422 @@ public class MuscleCard {
         buff[1] = (byte) (dataLen & 0xff);
         System.arraycopy(data, 0, buff, 2, data.length);
 
-        int chunkLen = MAX_SEND - 9;
+        int chunkLen = getObjectWriteChunkLength();
         for (int i = 0; i < buff.length; i += chunkLen) {
             updateObjectChunk(objectId, offset + i, buff, i,
                     Math.min(buff.length - i, chunkLen));
         }
     }
 
-    private void updateObjectChunk(String objectId, int offset, byte[] data,
-            int dataOffset, int dataLen) throws IOException {
-        connect();
+    private int getObjectWriteChunkLength() throws IOException {
+        // the applet's length field is one byte, so only the header
+        // can take advantage of an extended Lc
+        return Math.min(MAX_OBJECT_WRITE,
+                getMaxCommandData(isExtendedLengthSupported(), false)
+                        - OBJECT_IO_HEADER_LEN);
+    }
 
-        int lc = dataLen + 9;
-        String cmd = String.format(
-                "B0 54 00 00 %02x %s %s %02x %s",
-                lc,
-                objectId,
-                Hex.toHex(offset),
-                dataLen,
-                Hex.toHex(Arrays.copyOfRange(data, dataOffset, dataOffset
-                        + dataLen)));
-        ResponseApdu rapdu = transceive(cmd);
-        if (DEBUG) {
-            Log.d(TAG, "UPDATE OBJECT: " + rapdu.toString());
-        }
+    private void updateObjectChunk(int objectId, int offset, byte[] data,
+            int dataOffset, int dataLen) throws IOException {
+        // objectId | offset | dataLen | data
+        apdu.start(CLA_MUSCLE, INS_UPDATE_OBJECT, 0x00, 0x00)
+                .appendInt(objectId).appendInt(offset).append(dataLen)
+                .append(data, dataOffset, dataLen);
+        ResponseApdu rapdu = transceive(apdu);
         checkSw(rapdu);
     }
 
-    public byte[] readObject(String objectId, int offset, int dataLen)
+    public byte[] readObject(int objectId, int offset, int dataLen)
             throws IOException {
-        connect();
+        byte[] result = new byte[dataLen];
+        readObject(objectId, offset, result, 0, dataLen);
 
-        int chunkLen = MAX_READ;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        for (int i = 0; i < dataLen; i += chunkLen) {
-            byte[] chunk = readObjectChunk(objectId, offset + i,
-                    Math.min(dataLen - i, chunkLen));
-            baos.write(chunk);
-        }
-
-        return baos.toByteArray();
+        return result;
     }
 
-    private byte[] readObjectChunk(String objectId, int offset, int dataLen)
-            throws IOException {
-        connect();
+    /**
+     * Reads <code>dataLen</code> bytes of an object directly into
+     * <code>dest</code>, so each chunk is copied only once.
+     */
+    public void readObject(int objectId, int offset, byte[] dest,
+            int destOffset, int dataLen) throws IOException {
+        for (int i = 0; i < dataLen; i += MAX_READ) {
+            int chunkLen = Math.min(dataLen - i, MAX_READ);
+            ResponseApdu rapdu = readObjectChunk(objectId, offset + i,
+                    chunkLen);
+            if (rapdu.getDataLength() != chunkLen) {
+                throw new MuscleException("Short object read: "
+                        + rapdu.getDataLength() + ", expected " + chunkLen);
+            }
+            rapdu.copyData(0, dest, destOffset + i, chunkLen);
+        }
+    }
 
+    private ResponseApdu readObjectChunk(int objectId, int offset,
+            int dataLen) throws IOException {
         // objectId | offset | dataLen | le
-        String cmd = String.format("B0 56 00 00 09 %s %s %02x %02x", objectId,
-                Hex.toHex(offset), dataLen, dataLen);
-        ResponseApdu rapdu = transceive(cmd);
-        if (DEBUG) {
-            Log.d(TAG, "READ OBJECT: " + rapdu.toString());
-        }
+        apdu.start(CLA_MUSCLE, INS_READ_OBJECT, 0x00, 0x00)
+                .appendInt(objectId).appendInt(offset).append(dataLen)
+                .le(dataLen);
+        ResponseApdu rapdu = transceive(apdu);
         checkSw(rapdu);
 
-        return rapdu.getData();
+        return rapdu;
     }
 
-    private static byte[] createSha512EncryptionBlock(byte[] data, int keySize) {
+    public byte[] sign(byte[] data) throws IOException {
+        if (data.length == 0) {
+            throw new IllegalArgumentException("Data must not be empty");
+        }
+
         try {
             MessageDigest md = MessageDigest.getInstance("SHA512");
-            byte[] digest = md.digest(data);
-            // SHA512
-            AlgorithmIdentifier sha512Aid = AlgorithmIdentifier
-                    .getInstance("2.16.840.1.101.3.4.2.3");
-            DigestInfo di = new DigestInfo(sha512Aid, digest);
-            byte[] diDer = di.getEncoded(ASN1Encoding.DER);
-
-            return padPkcs1(diDer, keySize);
+            return signDigest(md.digest(data));
         } catch (GeneralSecurityException e) {
             throw new RuntimeException(e);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
     }
 
-    // PKCS#1 padding
-    private static byte[] padPkcs1(byte[] in, int keySize) {
-        if (in.length > keySize) {
-            throw new IllegalArgumentException("Data too long");
+    /**
+     * Signs a precomputed SHA-512 digest (SHA512withRSA). If the card is
+     * lost and reattached within the reattach timeout, the signature is
+     * resumed from the last step the card confirmed. Other I/O errors, e.g.
+     * timeouts, are thrown right away.
+     */
+    public byte[] signDigest(byte[] digest) throws IOException {
+        SignatureOperation op = startSignature(digest);
+        while (true) {
+            int attached = getAttachCount();
+            try {
+                return completeSignature(op);
+            } catch (IOException e) {
+                if (!isTagLost(e, attached) || !awaitReattach(attached)) {
+                    throw e;
+                }
+                Log.w(TAG, "Card reattached, resuming " + op);
+            }
+        }
+    }
+
+    public SignatureOperation startSignature(byte[] digest) {
+        if (digest.length != SHA512_LEN) {
+            throw new IllegalArgumentException("Invalid SHA-512 digest length: "
+                    + digest.length);
         }
-        byte[] result = new byte[keySize / 8];
+        takePendingTransport();
 
-        result[0] = 0x0;
-        result[1] = 0x01; // BT 1
+        return new SignatureOperation(digest, getCardIdentity());
+    }
 
-        // PS
-        for (int i = 2; i != result.length - in.length - 1; i++) {
-            result[i] = (byte) 0xff;
+    /**
+     * Runs <code>op</code> from its last checkpoint. If the card is lost the
+     * <code>IOException</code> is passed on and <code>op</code> keeps its
+     * progress, so it can be completed after <code>reattach()</code>.
+     */
+    public byte[] completeSignature(SignatureOperation op) throws IOException {
+        if (op.isDone()) {
+            return op.signature;
+        }
+        takePendingTransport();
+        String cardIdentity = getCardIdentity();
+        if (!op.isSameCard(cardIdentity)) {
+            op.restart(cardIdentity);
         }
 
-        // end of padding
-        result[result.length - in.length - 1] = 0x00;
-        // D
-        System.arraycopy(in, 0, result, result.length - in.length, in.length);
+        byte[] eb = encryptionBlock;
+        Pkcs1Padding.encode(op.getDigest(), KEY_SIZE, eb);
+        if (op.step == SignatureOperation.Step.STARTED && inlineCrypt) {
+            // 256 byte block with a 258 byte response doesn't fit a short
+            // APDU, but may still be too long for the reader. Resolved
+            // before INIT, as the probe would interrupt the crypt sequence.
+            boolean extended = isExtendedLengthSupported()
+                    && getMaxCommandData(true, true) >= eb.length
+                            + INLINE_HEADER_LEN;
+            // no card state to resume, starts over with INIT if interrupted
+            ResponseApdu rapdu = sendComputeCryptInit();
+            byte[] signature = null;
+            if (!isInlineCryptRejected(rapdu)) {
+                checkSw(rapdu);
+                signature = extended ? computeCryptFinal(eb)
+                        : computeCryptChained(eb);
+            }
+            if (signature != null) {
+                op.signature = signature;
+                op.step = SignatureOperation.Step.DONE;
+                return signature;
+            }
+            // remembered until a different card is attached
+            Log.w(TAG, "Card doesn't support in-APDU COMPUTE CRYPT, "
+                    + "using objects");
+            inlineCrypt = false;
+        }
 
-        return result;
+        // len | data => data length + 2
+        int signatureLen = KEY_SIZE / 8;
+        if (op.step == SignatureOperation.Step.STARTED) {
+            allocateScratchObjects(signatureLen + 2);
+            op.step = SignatureOperation.Step.OBJECTS_ALLOCATED;
+        }
+        if (op.step == SignatureOperation.Step.OBJECTS_ALLOCATED) {
+            byte[] block = new byte[eb.length + 2];
+            block[0] = (byte) (eb.length >> 8);
+            block[1] = (byte) eb.length;
+            System.arraycopy(eb, 0, block, 2, eb.length);
+            try {
+                writeBlock(op, block);
+            } catch (MuscleException e) {
+                if (e.getSW() != SW_OBJECT_NOT_FOUND) {
+                    throw e;
+                }
+                // deleted behind our back
+                scratchObjectSize = 0;
+                allocateScratchObjects(signatureLen + 2);
+                op.blockWritten = 0;
+                writeBlock(op, block);
+            }
+            op.step = SignatureOperation.Step.BLOCK_WRITTEN;
+        }
+        if (op.step == SignatureOperation.Step.BLOCK_WRITTEN) {
+            // the cipher state doesn't survive a lost card, but IN does, so
+            // this can be repeated
+            computeCryptInit();
+            computeCryptFinal();
+            op.signature = new byte[signatureLen];
+            op.step = SignatureOperation.Step.CRYPT_DONE;
+        }
+
+        // len | data => offset = 0x2
+        while (op.signatureRead < signatureLen) {
+            int chunkLen = Math.min(signatureLen - op.signatureRead, MAX_READ);
+            readObject(OUT_OBJ_ID, 2 + op.signatureRead, op.signature,
+                    op.signatureRead, chunkLen);
+            op.signatureRead += chunkLen;
+        }
+        op.step = SignatureOperation.Step.DONE;
+
+        return op.signature;
     }
 
-    public byte[] sign(byte[] data) throws IOException {
-        if (data.length == 0) {
-            throw new IllegalArgumentException("Data must not be empty");
+    // writes IN one chunk at a time, recording each chunk the card accepted
+    private void writeBlock(SignatureOperation op, byte[] block)
+            throws IOException {
+        int chunkLen = getObjectWriteChunkLength();
+        while (op.blockWritten < block.length) {
+            int len = Math.min(block.length - op.blockWritten, chunkLen);
+            updateObjectChunk(IN_OBJ_ID, op.blockWritten, block,
+                    op.blockWritten, len);
+            op.blockWritten += len;
         }
+    }
 
-        connect();
+    // a timed out command leaves the connection open, so only a lost tag
+    // or a closed connection is worth waiting for
+    private boolean isTagLost(IOException e, int attached) {
+        return e instanceof TagLostException || !transport.isConnected()
+                || getAttachCount() != attached;
+    }
 
-        computeCryptInit();
+    private int getAttachCount() {
+        synchronized (attachLock) {
+            return attachCount;
+        }
+    }
 
-        // len | data => data length + 2
-        int signatureLen = 2048 / 8;
-        createObject(INPUT_OBJ_ID, signatureLen + 2, (short) 0x2, (short) 0x2,
-                (short) 0x2);
-        createObject(OUTPUT_OBJ_ID, signatureLen + 2, (short) 0x2, (short) 0x2,
-                (short) 0x2);
+    // waits for reattach() to be called after attachCount was read, false
+    // on timeout
+    private boolean awaitReattach(int attached) {
+        long deadline = System.currentTimeMillis() + reattachTimeoutMillis;
+        synchronized (attachLock) {
+            while (attachCount == attached) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    attachLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
 
-        byte[] eb = createSha512EncryptionBlock(data, 2048);
-        updateObject(OUTPUT_OBJ_ID, 0, eb);
+            return true;
+        }
+    }
 
-        computeCryptFinal();
+    /**
+     * Creates the COMPUTE CRYPT I/O objects unless they already exist. They
+     * are reused by all following signatures until
+     * <code>releaseScratchObjects()</code> is called.
+     */
+    public void allocateScratchObjects(int size) throws IOException {
+        if (scratchObjectSize >= size) {
+            return;
+        }
+        if (scratchObjectSize != 0) {
+            releaseScratchObjects();
+        }
 
-        // len | data => offset = 0x2
-        String cmd = "B0 56 00 00 09 FF FF FF FF 00 00 00 02 FF FF";
-        ResponseApdu rapdu = transceive(cmd);
-        if (DEBUG) {
-            Log.d(TAG, "READ OBJECT: " + rapdu.toString());
+        createObjectIfMissing(IN_OBJ_ID, size);
+        createObjectIfMissing(OUT_OBJ_ID, size);
+        scratchObjectSize = size;
+    }
+
+    public void releaseScratchObjects() throws IOException {
+        deleteObjectIfPresent(IN_OBJ_ID);
+        deleteObjectIfPresent(OUT_OBJ_ID);
+        scratchObjectSize = 0;
+    }
+
+    private void createObjectIfMissing(int id, int size) throws IOException {
+        try {
+            createObject(id, size, SCRATCH_OBJ_ACL, SCRATCH_OBJ_ACL,
+                    SCRATCH_OBJ_ACL);
+        } catch (MuscleException e) {
+            // left over from an earlier session
+            if (e.getSW() != SW_OBJECT_EXISTS) {
+                throw e;
+            }
         }
-        checkSw(rapdu);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(rapdu.getData());
+    }
 
-        cmd = "B0 56 00 00 09 FF FF FF FF 00 00 01 01 01 01";
-        rapdu = transceive(cmd);
-        if (DEBUG) {
-            Log.d(TAG, "READ OBJECT: " + rapdu.toString());
+    private void deleteObjectIfPresent(int id) throws IOException {
+        try {
+            deleteObject(id);
+        } catch (MuscleException e) {
+            if (e.getSW() != SW_OBJECT_NOT_FOUND) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Identifies the card without talking to it: UID plus historical bytes.
+     * Returns <code>null</code> if the transport doesn't report a UID. Takes
+     * a pending <code>reattach()</code> into account.
+     */
+    public String getCardIdentity() {
+        CardTransport transport;
+        synchronized (attachLock) {
+            transport = pendingTransport;
+        }
+
+        return getIdentity(transport == null ? this.transport : transport);
+    }
+
+    private static String getIdentity(CardTransport transport) {
+        byte[] id = transport.getId();
+        if (id == null) {
+            return null;
+        }
+        byte[] historicalBytes = transport.getHistoricalBytes();
+
+        return Hex.toHex(id) + "/"
+                + (historicalBytes == null ? "" : Hex.toHex(historicalBytes));
+    }
+
+    /**
+     * Whether both the reader and the card accept extended length APDUs.
+     * Taken from the card capabilities in the historical bytes if present,
+     * otherwise the card is probed once with an extended READ OBJECT.
+     */
+    public boolean isExtendedLengthSupported() throws IOException {
+        if (extendedLength == null) {
+            extendedLength = detectExtendedLength();
+            if (trace.isEnabled()) {
+                Log.d(TAG, "Extended length APDUs: " + extendedLength);
+            }
+        }
+
+        return extendedLength;
+    }
+
+    private boolean detectExtendedLength() throws IOException {
+        if (!transport.isExtendedLengthSupported()) {
+            return false;
+        }
+
+        int caps = getCardCapabilities(transport.getHistoricalBytes());
+        if (caps != -1) {
+            return (caps & CAPS_EXTENDED_LENGTH) != 0;
+        }
+
+        apdu.start(CLA_MUSCLE, INS_READ_OBJECT, 0x00, 0x00)
+                .appendInt(CERT_OBJECT_ID).appendInt(0).append(1).le(1)
+                .extended();
+        ResponseApdu rapdu = transceive(apdu);
+        short sw = rapdu.getSW();
+
+        // any applet error means the command was parsed
+        return sw == SW_SUCCESS || sw == SW_OBJECT_NOT_FOUND
+                || sw == SW_UNAUTHORIZED;
+    }
+
+    // third byte of the card capabilities compact-TLV object, -1 if absent
+    private static int getCardCapabilities(byte[] historicalBytes) {
+        if (historicalBytes == null || historicalBytes.length == 0) {
+            return -1;
         }
-        checkSw(rapdu);
-        baos.write(rapdu.getData());
 
-        deleteObject(OUTPUT_OBJ_ID);
+        int category = historicalBytes[0] & 0xff;
+        int end = historicalBytes.length;
+        if (category == CATEGORY_STATUS_LAST) {
+            // last 3 bytes are the status indicator
+            end -= 3;
+        } else if (category != CATEGORY_COMPACT_TLV) {
+            return -1;
+        }
+
+        int idx = 1;
+        while (idx < end) {
+            int tag = (historicalBytes[idx] & 0xf0) >> 4;
+            int len = historicalBytes[idx] & 0x0f;
+            idx++;
+            if (tag == TAG_CARD_CAPABILITIES && len >= 3 && idx + 3 <= end) {
+                return historicalBytes[idx + 2] & 0xff;
+            }
+            idx += len;
+        }
+
+        return -1;
+    }
+
+    // largest command data the reader can send in a single APDU
+    private int getMaxCommandData(boolean extended, boolean withLe) {
+        int maxLc = extended ? CommandApdu.MAX_EXTENDED_LC
+                : CommandApdu.MAX_SHORT_LC;
+        int maxTransceive = transport.getMaxTransceiveLength();
+        if (maxTransceive <= 0) {
+            return maxLc;
+        }
+        int overhead = APDU_HEADER_LEN + (extended ? 3 : 1);
+        if (withLe) {
+            overhead += extended ? 2 : 1;
+        }
 
-        return baos.toByteArray();
+        return Math.min(maxLc, maxTransceive - overhead);
     }
 
     private void connect() throws IOException {
-        if (!tag.isConnected()) {
-            tag.connect();
+        takePendingTransport();
+        if (latencyProfile == null) {
+            latencyProfile = CardLatencyProfile.forCard(transport
+                    .getHistoricalBytes());
         }
+        if (session == null || !transport.isConnected()) {
+            if (!transport.isConnected()) {
+                transport.connect();
+                // the transport resets the timeout on close
+                timeoutMillis = 0;
+            }
+            session = new MuscleCardSession();
+        }
+    }
+
+    public void close() throws IOException {
+        takePendingTransport();
+        session = null;
+        transport.close();
     }
 
     private void checkSw(ResponseApdu rapdu) {
@@ -270,35 +879,212 @@ public class MuscleCard {
         }
     }
 
-    private ResponseApdu transceive(String cmd) throws IOException {
-        if (DEBUG) {
-            Log.d(TAG, "--> " + cmd);
-        }
-        byte[] response = tag.transceive(Hex.fromHex(cmd));
-        if (DEBUG) {
-            Log.d(TAG, "<-- " + Hex.toHex(response));
+    // sends a command, restoring the applet and PIN state once if the
+    // response shows they were lost
+    private ResponseApdu transceive(CommandApdu cmd) throws IOException {
+        byte[] command = cmd.toByteArray();
+        ResponseApdu rapdu = send(command);
+
+        short sw = rapdu.getSW();
+        boolean notSelected = sw == SW_CLA_NOT_SUPPORTED
+                || sw == SW_INS_NOT_SUPPORTED;
+        boolean loggedOut = sw == SW_UNAUTHORIZED && pin != null;
+        if (notSelected || loggedOut) {
+            Log.w(TAG, "Card state lost, SW: " + Integer.toString(sw, 16));
+            if (notSelected) {
+                session.invalidate();
+                select();
+            }
+            if (pin != null && !verifyPin(pin)) {
+                return rapdu;
+            }
+            rapdu = send(command);
         }
 
-        return new ResponseApdu(response);
+        return rapdu;
     }
 
-    public void deleteObject(String id) throws IOException {
+    private ResponseApdu send(byte[] command) throws IOException {
         connect();
+        int ins = command[1] & 0xff;
+        int p2 = command[3] & 0xff;
+        setTimeout(ins, p2);
+        byte[] response;
+        long start = System.nanoTime();
+        try {
+            response = transport.transceive(command);
+        } catch (IOException e) {
+            latencyProfile.recordFailure(ins, p2);
+            // tag lost, state has to be rebuilt on the next connect
+            session = null;
+            trace.record(command, null, System.nanoTime() - start);
+            throw e;
+        }
+        long nanos = System.nanoTime() - start;
+        lastUsedNanos = start + nanos;
+        latencyProfile.record(ins, p2, nanos);
+        metrics.recordApdu(ins, command.length, response.length, nanos);
+        trace.record(command, response, nanos);
+
+        return new ResponseApdu(response);
+    }
 
-        int len = byteLength(id);
-        String cmd = String.format("B0 52 00 00 %02x %s", len, id);
-        ResponseApdu rapdu = transceive(cmd);
-        if (DEBUG) {
-            Log.d(TAG, "DELETE OBJECT: " + rapdu.toString());
+    // INIT, PROCESS and FINAL share INS_COMPUTE_CRYPT, only FINAL runs the
+    // private key operation, so the profile tells them apart by P2
+    private void setTimeout(int ins, int p2) {
+        int defaultMillis = ins == INS_COMPUTE_CRYPT ? CRYPT_TIMEOUT_MILLIS
+                : DEFAULT_TIMEOUT_MILLIS;
+        int timeout = latencyProfile.getTimeoutMillis(ins, p2, defaultMillis);
+        timeout = (timeout + TIMEOUT_STEP_MILLIS - 1) / TIMEOUT_STEP_MILLIS
+                * TIMEOUT_STEP_MILLIS;
+        if (timeout != timeoutMillis) {
+            transport.setTimeout(timeout);
+            timeoutMillis = timeout;
         }
+    }
+
+    public void deleteObject(int id) throws IOException {
+        apdu.start(CLA_MUSCLE, INS_DELETE_OBJECT, 0x00, 0x00).appendInt(id);
+        ResponseApdu rapdu = transceive(apdu);
         checkSw(rapdu);
     }
 
+    /**
+     * Reads the applet's object directory with LIST OBJECTS.
+     */
+    public List<ObjectInfo> listObjects() throws IOException {
+        List<ObjectInfo> result = new ArrayList<ObjectInfo>();
+        int p1 = LIST_FIRST;
+        while (true) {
+            apdu.start(CLA_MUSCLE, INS_LIST_OBJECTS, p1, 0x00).le(
+                    OBJECT_INFO_LEN);
+            ResponseApdu rapdu = transceive(apdu);
+            if (rapdu.getSW() == SW_SEQUENCE_END) {
+                break;
+            }
+            checkSw(rapdu);
+
+            byte[] info = rapdu.getData();
+            result.add(new ObjectInfo(getInt(info, 0), getInt(info, 4)));
+            p1 = LIST_NEXT;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the size of an object from the directory, -1 if not found.
+     */
+    public int getObjectSize(int objectId) throws IOException {
+        for (ObjectInfo info : listObjects()) {
+            if (info.getId() == objectId) {
+                return info.getSize();
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Reads the signer certificate, sized from the DER header in the first
+     * chunk, so only as many READ OBJECT commands as needed are sent.
+     */
     public byte[] readSignerCertificate() throws IOException {
-        return readObject(CERT_OBJECT_ID, 0, CERT_SIZE);
+        ResponseApdu first;
+        try {
+            first = readObjectChunk(CERT_OBJECT_ID, 0, MAX_READ);
+        } catch (MuscleException e) {
+            if (e.getSW() != SW_INVALID_PARAMETER) {
+                throw e;
+            }
+            // object is shorter than a full chunk
+            int size = getObjectSize(CERT_OBJECT_ID);
+            if (size <= 0) {
+                throw e;
+            }
+            byte[] certs = readObject(CERT_OBJECT_ID, 0, size);
+            int certLen = getDerLength(certs, 0);
+            if (certLen <= 0 || certLen > certs.length) {
+                throw new MuscleException("Invalid certificate object");
+            }
+
+            return certLen == certs.length ? certs : Arrays.copyOf(certs,
+                    certLen);
+        }
+
+        int certLen = getDerLength(first.asByteBuffer(), 0);
+        if (certLen <= 0) {
+            throw new MuscleException("Invalid certificate object");
+        }
+
+        // the first chunk goes straight from the response into the result
+        byte[] result = new byte[certLen];
+        int firstLen = Math.min(certLen, first.getDataLength());
+        first.copyData(0, result, 0, firstLen);
+        if (certLen > firstLen) {
+            readObject(CERT_OBJECT_ID, firstLen, result, firstLen, certLen
+                    - firstLen);
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads all certificates stored back to back in the certificate object,
+     * signer certificate first.
+     */
+    public List<byte[]> readCertificateChain() throws IOException {
+        int size = getObjectSize(CERT_OBJECT_ID);
+        if (size <= 0) {
+            throw new MuscleException("Certificate object not found");
+        }
+        byte[] certs = readObject(CERT_OBJECT_ID, 0, size);
+
+        List<byte[]> result = new ArrayList<byte[]>();
+        int offset = 0;
+        while (offset < certs.length) {
+            int certLen = getDerLength(certs, offset);
+            // padding or garbage after the last certificate
+            if (certLen <= 0 || offset + certLen > certs.length) {
+                break;
+            }
+            result.add(Arrays.copyOfRange(certs, offset, offset + certLen));
+            offset += certLen;
+        }
+
+        return result;
+    }
+
+    private static int getDerLength(byte[] der, int offset) {
+        return getDerLength(ByteBuffer.wrap(der), offset);
+    }
+
+    // total length of the DER SEQUENCE at offset, -1 if there isn't one
+    private static int getDerLength(ByteBuffer der, int offset) {
+        int available = der.limit() - offset;
+        if (available < 2 || (der.get(offset) & 0xff) != DER_SEQUENCE) {
+            return -1;
+        }
+
+        int len = der.get(offset + 1) & 0xff;
+        if (len < 0x80) {
+            return 2 + len;
+        }
+
+        int lenBytes = len & 0x7f;
+        if (lenBytes == 0 || lenBytes > 3 || available < 2 + lenBytes) {
+            return -1;
+        }
+        len = 0;
+        for (int i = 0; i < lenBytes; i++) {
+            len = (len << 8) | (der.get(offset + 2 + i) & 0xff);
+        }
+
+        return 2 + lenBytes + len;
     }
 
-    private static int byteLength(String id) {
-        return id.replace(" ", "").length() / 2;
+    private static int getInt(byte[] buff, int offset) {
+        return ((buff[offset] & 0xff) << 24) | ((buff[offset + 1] & 0xff) << 16)
+                | ((buff[offset + 2] & 0xff) << 8) | (buff[offset + 3] & 0xff);
     }
 }
@@ -1,8 +1,13 @@
 package org.nick.nfcsmime;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+
+import javax.crypto.Cipher;
 
 import org.spongycastle.asn1.pkcs.PKCSObjectIdentifiers;
 import org.spongycastle.asn1.x509.AlgorithmIdentifier;
@@ -10,13 +15,43 @@ import org.spongycastle.operator.ContentSigner;
 
 public class MuscleCardContentSigner implements ContentSigner {
 
-    private ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    private MessageDigest md;
+    // the card only needs the digest, so hash as the data is written
+    private OutputStream digestStream = new OutputStream() {
+        @Override
+        public void write(int b) {
+            md.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            md.update(b, off, len);
+        }
+    };
     private MuscleCard msc;
     private String pin;
+    private X509Certificate signerCert;
+    private CertificateCache certCache;
 
     public MuscleCardContentSigner(MuscleCard msc, String pin) {
+        this(msc, pin, null, null);
+    }
+
+    /**
+     * If <code>signerCert</code> is given, each signature is checked against
+     * it, and a stale cache entry for the card is dropped on mismatch.
+     */
+    public MuscleCardContentSigner(MuscleCard msc, String pin,
+            X509Certificate signerCert, CertificateCache certCache) {
         this.msc = msc;
         this.pin = pin;
+        this.signerCert = signerCert;
+        this.certCache = certCache;
+        try {
+            this.md = MessageDigest.getInstance("SHA512");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
@@ -27,24 +62,55 @@ public class MuscleCardContentSigner implements ContentSigner {
 
     @Override
     public OutputStream getOutputStream() {
-        return baos;
+        return digestStream;
     }
 
     @Override
     public byte[] getSignature() {
         try {
-            msc.select();
-            boolean pinValid = msc.verifyPin(pin);
+            return sign();
+        } catch (RuntimeException e) {
+            // only formatted if the trace is on
+            msc.getTrace().dump("signature failed: " + e.getMessage());
+            throw e;
+        }
+    }
+
+    private byte[] sign() {
+        try {
+            boolean pinValid = msc.ensurePinVerified(pin);
             if (!pinValid) {
                 throw new IllegalStateException("Invalid PIN");
             }
 
-            byte[] data = baos.toByteArray();
-            baos.reset();
-            return msc.sign(data);
+            // resets the digest for the next signature
+            byte[] digest = md.digest();
+            byte[] signature = msc.signDigest(digest);
+            if (signerCert != null && !matchesCertificate(digest, signature)) {
+                // card swapped or certificate rotated
+                if (certCache != null && msc.getCardIdentity() != null) {
+                    certCache.remove(msc.getCardIdentity());
+                }
+                throw new IllegalStateException(
+                        "Card key doesn't match signer certificate");
+            }
+
+            return signature;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private boolean matchesCertificate(byte[] digest, byte[] signature) {
+        try {
+            Cipher c = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+            c.init(Cipher.DECRYPT_MODE, signerCert.getPublicKey());
+            byte[] digestInfo = c.doFinal(signature);
+
+            return MessageDigest.isEqual(digestInfo,
+                    Pkcs1Padding.encodeDigestInfo(digest));
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
 }
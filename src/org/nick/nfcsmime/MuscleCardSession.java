@@ -0,0 +1,46 @@
+package org.nick.nfcsmime;
+
+/**
+ * Card state for the lifetime of a single tag connection. A new session is
+ * started whenever <code>MuscleCard</code> has to (re)connect.
+ */
+public class MuscleCardSession {
+
+    private boolean selected;
+    private boolean pinVerified;
+    private int selectCount;
+    private int verifyCount;
+
+    public boolean isSelected() {
+        return selected;
+    }
+
+    public boolean isPinVerified() {
+        return pinVerified;
+    }
+
+    public int getSelectCount() {
+        return selectCount;
+    }
+
+    public int getVerifyCount() {
+        return verifyCount;
+    }
+
+    void selected() {
+        // the applet logs out all identities on SELECT
+        selected = true;
+        pinVerified = false;
+        selectCount++;
+    }
+
+    void pinVerified(boolean verified) {
+        pinVerified = verified;
+        verifyCount++;
+    }
+
+    void invalidate() {
+        selected = false;
+        pinVerified = false;
+    }
+}
@@ -0,0 +1,714 @@
+package org.nick.nfcsmime;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-process MuscleCard applet. Implements the object store, PIN
+ * verification and RSA_NOPAD COMPUTE CRYPT closely enough to run
+ * <code>MuscleCard</code> and the S/MIME senders without a phone or a card.
+ * Responses longer than 256 bytes to short commands are returned in parts
+ * with 61xx and GET RESPONSE.
+ * An optional per-APDU latency approximates the NFC round trip, commands
+ * that take longer than the transceive timeout fail with an
+ * <code>IOException</code>.
+ */
+public class MuscleCardSimulator implements CardTransport {
+
+    static final short SW_SUCCESS = (short) 0x9000;
+    static final short SW_AUTH_FAILED = (short) 0x9C02;
+    static final short SW_UNSUPPORTED_FEATURE = (short) 0x9C05;
+    static final short SW_UNAUTHORIZED = (short) 0x9C06;
+    static final short SW_OBJECT_NOT_FOUND = (short) 0x9C07;
+    static final short SW_OBJECT_EXISTS = (short) 0x9C08;
+    static final short SW_INCORRECT_ALG = (short) 0x9C09;
+    static final short SW_INVALID_PARAMETER = (short) 0x9C0F;
+    static final short SW_INCORRECT_P1 = (short) 0x9C10;
+    static final short SW_INCORRECT_P2 = (short) 0x9C11;
+    static final short SW_SEQUENCE_END = (short) 0x9C12;
+    static final short SW_FILE_NOT_FOUND = (short) 0x6A82;
+    static final short SW_INS_NOT_SUPPORTED = (short) 0x6D00;
+    static final short SW_CLA_NOT_SUPPORTED = (short) 0x6E00;
+    static final short SW_WRONG_LENGTH = (short) 0x6700;
+    static final short SW_CONDITIONS_NOT_SATISFIED = (short) 0x6985;
+    static final short SW_UNKNOWN = (short) 0x6F00;
+    private static final int SW1_BYTES_REMAINING = 0x61;
+    private static final int MAX_SHORT_LE = 256;
+
+    private static final int CLA_ISO = 0x00;
+    private static final int CLA_MUSCLE = 0xB0;
+
+    private static final int INS_SELECT = 0xA4;
+    private static final int INS_GET_RESPONSE = 0xC0;
+    private static final int INS_VERIFY_PIN = 0x42;
+    private static final int INS_COMPUTE_CRYPT = 0x36;
+    private static final int INS_CREATE_OBJECT = 0x5A;
+    private static final int INS_DELETE_OBJECT = 0x52;
+    private static final int INS_UPDATE_OBJECT = 0x54;
+    private static final int INS_READ_OBJECT = 0x56;
+    private static final int INS_LIST_OBJECTS = 0x58;
+    private static final int INS_GET_STATUS = 0x3C;
+
+    private static final int OP_INIT = 0x01;
+    private static final int OP_PROCESS = 0x02;
+    private static final int OP_FINALIZE = 0x03;
+
+    private static final int MODE_RSA_NOPAD = 0x00;
+
+    private static final int DL_APDU = 0x01;
+    private static final int DL_OBJECT = 0x02;
+
+    private static final byte[] MUSCLE_AID = { (byte) 0xA0, 0x00, 0x00, 0x00,
+            0x01, 0x01 };
+    private static final int IN_OBJ_ID = 0xFFFFFFFE;
+    private static final int OUT_OBJ_ID = 0xFFFFFFFF;
+
+    static final int CERT_OBJECT_ID = 0x50153100;
+
+    private static final int ACL_FREE = 0x0000;
+    private static final int ACL_NEVER = 0xFFFF;
+
+    private static class CardObject {
+        byte[] data;
+        int readAcl;
+        int writeAcl;
+        int deleteAcl;
+
+        CardObject(int size, int readAcl, int writeAcl, int deleteAcl) {
+            this.data = new byte[size];
+            this.readAcl = readAcl;
+            this.writeAcl = writeAcl;
+            this.deleteAcl = deleteAcl;
+        }
+    }
+
+    private final Map<Integer, CardObject> objects = new LinkedHashMap<Integer, CardObject>();
+    private final byte[] pin;
+    private final RSAPrivateKey key;
+
+    private long latencyMillis;
+    private final Map<Integer, Long> commandLatencies = new HashMap<Integer, Long>();
+    // keyed by INS << 8 | P2
+    private final Map<Integer, Long> operationLatencies = new HashMap<Integer, Long>();
+    private int timeoutMillis;
+    private int maxTransceiveLength;
+    private int apduCount;
+    private boolean extendedLength;
+    private boolean inlineCrypt = true;
+    private byte[] historicalBytes;
+    private byte[] id = { 0x04, 0x53, 0x49, 0x4D };
+
+    private boolean connected;
+    private boolean selected;
+    private int loggedIds;
+    private int cipherKey = -1;
+    // input accumulated by COMPUTE CRYPT process
+    private byte[] cipherInput = new byte[0];
+    private boolean extendedCommand;
+    // rest of a chained response, fetched with GET RESPONSE
+    private byte[] pendingResponse;
+    private int pendingOffset;
+    private Iterator<Map.Entry<Integer, CardObject>> listIterator;
+
+    public MuscleCardSimulator(String pin, RSAPrivateKey key,
+            byte[] certificate) {
+        this.pin = pin.getBytes();
+        this.key = key;
+        if (certificate != null) {
+            CardObject cert = new CardObject(certificate.length, ACL_FREE,
+                    ACL_NEVER, ACL_NEVER);
+            System.arraycopy(certificate, 0, cert.data, 0, certificate.length);
+            objects.put(CERT_OBJECT_ID, cert);
+        }
+    }
+
+    public synchronized void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Sets the time taken by the applet to process <code>ins</code>, on top
+     * of the per-APDU latency.
+     */
+    public synchronized void setCommandLatency(int ins, long latencyMillis) {
+        commandLatencies.put(ins & 0xff, latencyMillis);
+    }
+
+    /**
+     * Like {@link #setCommandLatency(int, long)}, but only for commands
+     * with <code>p2</code>, e.g. the COMPUTE CRYPT FINAL that runs the key
+     * operation. Takes precedence over the per-INS latency.
+     */
+    public synchronized void setCommandLatency(int ins, int p2,
+            long latencyMillis) {
+        operationLatencies.put(((ins & 0xff) << 8) | (p2 & 0xff),
+                latencyMillis);
+    }
+
+    public synchronized void setMaxTransceiveLength(int maxTransceiveLength) {
+        this.maxTransceiveLength = maxTransceiveLength;
+    }
+
+    public synchronized int getTimeout() {
+        return timeoutMillis;
+    }
+
+    public synchronized void setExtendedLengthSupported(boolean extendedLength) {
+        this.extendedLength = extendedLength;
+    }
+
+    /**
+     * Whether COMPUTE CRYPT accepts data in the APDU. If not, PROCESS and
+     * FINAL with data location APDU fail with 6F00, like applets that don't
+     * implement it for RSA.
+     */
+    public synchronized void setInlineCryptSupported(boolean inlineCrypt) {
+        this.inlineCrypt = inlineCrypt;
+    }
+
+    public synchronized void setHistoricalBytes(byte[] historicalBytes) {
+        this.historicalBytes = historicalBytes;
+    }
+
+    public synchronized void setId(byte[] id) {
+        this.id = id;
+    }
+
+    public synchronized int getApduCount() {
+        return apduCount;
+    }
+
+    public synchronized boolean hasObject(int id) {
+        return objects.containsKey(id);
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        connected = true;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        connected = false;
+        timeoutMillis = 0;
+        reset();
+    }
+
+    @Override
+    public synchronized boolean isExtendedLengthSupported() {
+        return extendedLength;
+    }
+
+    @Override
+    public synchronized int getMaxTransceiveLength() {
+        if (maxTransceiveLength > 0) {
+            return maxTransceiveLength;
+        }
+
+        // header | Lc | data | Le
+        return extendedLength ? 4 + 3 + 65535 + 2 : 4 + 1 + 255 + 1;
+    }
+
+    @Override
+    public synchronized void setTimeout(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public synchronized byte[] getId() {
+        return id == null ? null : id.clone();
+    }
+
+    @Override
+    public synchronized byte[] getHistoricalBytes() {
+        return historicalBytes == null ? null : historicalBytes.clone();
+    }
+
+    /**
+     * Simulates the card leaving the field: the applet is deselected and all
+     * identities are logged out, objects survive.
+     */
+    public synchronized void reset() {
+        selected = false;
+        loggedIds = 0;
+        cipherKey = -1;
+        cipherInput = new byte[0];
+        listIterator = null;
+        pendingResponse = null;
+    }
+
+    @Override
+    public synchronized byte[] transceive(byte[] command) throws IOException {
+        if (!connected) {
+            throw new IOException("Not connected");
+        }
+        if (command.length > getMaxTransceiveLength()) {
+            throw new IOException("Command too long: " + command.length);
+        }
+        long latency = latencyMillis;
+        Long commandLatency = null;
+        if (command.length > 3) {
+            commandLatency = operationLatencies.get(((command[1] & 0xff) << 8)
+                    | (command[3] & 0xff));
+        }
+        if (commandLatency == null && command.length > 1) {
+            commandLatency = commandLatencies.get(command[1] & 0xff);
+        }
+        if (commandLatency != null) {
+            latency += commandLatency;
+        }
+        boolean timedOut = timeoutMillis > 0 && latency > timeoutMillis;
+        if (latency > 0) {
+            try {
+                Thread.sleep(timedOut ? timeoutMillis : latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        apduCount++;
+        if (timedOut) {
+            // the applet still runs the command, only the response is lost
+            transceiveCommand(command);
+            throw new IOException("Transceive timed out");
+        }
+
+        return transceiveCommand(command);
+    }
+
+    private byte[] transceiveCommand(byte[] command) {
+        if (command.length < 4) {
+            return status(SW_WRONG_LENGTH);
+        }
+        int cla = command[0] & 0xff;
+        int ins = command[1] & 0xff;
+        int p1 = command[2] & 0xff;
+        int p2 = command[3] & 0xff;
+        byte[] data = getCommandData(command);
+        if (data == null) {
+            return status(SW_WRONG_LENGTH);
+        }
+        extendedCommand = command.length > 5 && command[4] == 0x00;
+
+        if (cla == CLA_ISO && ins == INS_GET_RESPONSE) {
+            return getResponse(command);
+        }
+        // any other command discards the rest of a chained response
+        pendingResponse = null;
+
+        if (cla == CLA_ISO && ins == INS_SELECT) {
+            return select(p1, data);
+        }
+        if (cla != CLA_MUSCLE || !selected) {
+            return status(SW_CLA_NOT_SUPPORTED);
+        }
+
+        try {
+            switch (ins) {
+            case INS_VERIFY_PIN:
+                return verifyPin(p1, data);
+            case INS_CREATE_OBJECT:
+                return createObject(data);
+            case INS_DELETE_OBJECT:
+                return deleteObject(data);
+            case INS_UPDATE_OBJECT:
+                return updateObject(data);
+            case INS_READ_OBJECT:
+                return readObject(data);
+            case INS_LIST_OBJECTS:
+                return listObjects(p1);
+            case INS_COMPUTE_CRYPT:
+                return computeCrypt(p1, p2, data);
+            case INS_GET_STATUS:
+                return getStatus();
+            default:
+                return status(SW_INS_NOT_SUPPORTED);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return status(SW_INVALID_PARAMETER);
+        }
+    }
+
+    private byte[] select(int p1, byte[] aid) {
+        if (p1 != 0x04 || !Arrays.equals(aid, MUSCLE_AID)) {
+            return status(SW_FILE_NOT_FOUND);
+        }
+        // the applet logs out all identities on select
+        reset();
+        selected = true;
+
+        return status(SW_SUCCESS);
+    }
+
+    private byte[] verifyPin(int pinNumber, byte[] data) {
+        if (pinNumber != 1) {
+            return status(SW_INVALID_PARAMETER);
+        }
+        if (!Arrays.equals(data, pin)) {
+            loggedIds &= ~(1 << pinNumber);
+            return status(SW_AUTH_FAILED);
+        }
+        loggedIds |= 1 << pinNumber;
+
+        return status(SW_SUCCESS);
+    }
+
+    private byte[] createObject(byte[] data) {
+        if (data.length != 14) {
+            return status(SW_INVALID_PARAMETER);
+        }
+        if (loggedIds == 0) {
+            return status(SW_UNAUTHORIZED);
+        }
+        int id = getInt(data, 0);
+        if (objects.containsKey(id)) {
+            return status(SW_OBJECT_EXISTS);
+        }
+        objects.put(id, new CardObject(getInt(data, 4), getShort(data, 8),
+                getShort(data, 10), getShort(data, 12)));
+        listIterator = null;
+
+        return status(SW_SUCCESS);
+    }
+
+    private byte[] deleteObject(byte[] data) {
+        CardObject obj = objects.get(getInt(data, 0));
+        if (obj == null) {
+            return status(SW_OBJECT_NOT_FOUND);
+        }
+        if (!isAllowed(obj.deleteAcl)) {
+            return status(SW_UNAUTHORIZED);
+        }
+        objects.remove(getInt(data, 0));
+        listIterator = null;
+
+        return status(SW_SUCCESS);
+    }
+
+    private byte[] updateObject(byte[] data) {
+        // objectId | offset | dataLen | data
+        CardObject obj = objects.get(getInt(data, 0));
+        if (obj == null) {
+            return status(SW_OBJECT_NOT_FOUND);
+        }
+        if (!isAllowed(obj.writeAcl)) {
+            return status(SW_UNAUTHORIZED);
+        }
+        int offset = getInt(data, 4);
+        int len = data[8] & 0xff;
+        if (len != data.length - 9 || offset < 0
+                || offset + len > obj.data.length) {
+            return status(SW_INVALID_PARAMETER);
+        }
+        System.arraycopy(data, 9, obj.data, offset, len);
+
+        return status(SW_SUCCESS);
+    }
+
+    private byte[] readObject(byte[] data) {
+        // objectId | offset | dataLen
+        CardObject obj = objects.get(getInt(data, 0));
+        if (obj == null) {
+            return status(SW_OBJECT_NOT_FOUND);
+        }
+        if (!isAllowed(obj.readAcl)) {
+            return status(SW_UNAUTHORIZED);
+        }
+        int offset = getInt(data, 4);
+        int len = data[8] & 0xff;
+        if (offset < 0 || offset + len > obj.data.length) {
+            return status(SW_INVALID_PARAMETER);
+        }
+
+        return response(obj.data, offset, len, SW_SUCCESS);
+    }
+
+    private byte[] listObjects(int p1) {
+        if (p1 == 0x00) {
+            listIterator = objects.entrySet().iterator();
+        } else if (p1 != 0x01 || listIterator == null) {
+            return status(SW_INCORRECT_P1);
+        }
+        if (!listIterator.hasNext()) {
+            listIterator = null;
+            return status(SW_SEQUENCE_END);
+        }
+
+        // objectId | size | readAcl | writeAcl | deleteAcl
+        Map.Entry<Integer, CardObject> entry = listIterator.next();
+        CardObject obj = entry.getValue();
+        byte[] info = new byte[14];
+        putInt(info, 0, entry.getKey());
+        putInt(info, 4, obj.data.length);
+        putShort(info, 8, obj.readAcl);
+        putShort(info, 10, obj.writeAcl);
+        putShort(info, 12, obj.deleteAcl);
+
+        return response(info, 0, info.length, SW_SUCCESS);
+    }
+
+    private byte[] getStatus() {
+        // CE version | applet version | total memory | free memory | PINs |
+        // keys | logged identities
+        byte[] status = new byte[16];
+        status[0] = 0x01;
+        status[2] = 0x01;
+        int used = 0;
+        for (CardObject obj : objects.values()) {
+            used += obj.data.length;
+        }
+        putInt(status, 4, 0x8000);
+        putInt(status, 8, Math.max(0, 0x8000 - used));
+        status[12] = 1;
+        status[13] = (byte) (key == null ? 0 : 1);
+        putShort(status, 14, loggedIds);
+
+        return response(status, 0, status.length, SW_SUCCESS);
+    }
+
+    private byte[] computeCrypt(int keyNum, int op, byte[] data) {
+        if (key == null || keyNum != 0) {
+            return status(SW_INVALID_PARAMETER);
+        }
+        if ((loggedIds & 0x02) == 0) {
+            return status(SW_UNAUTHORIZED);
+        }
+
+        switch (op) {
+        case OP_INIT:
+            // mode | direction | data location
+            if ((data[0] & 0xff) != MODE_RSA_NOPAD) {
+                return status(SW_INCORRECT_ALG);
+            }
+            cipherKey = keyNum;
+            cipherInput = new byte[0];
+            return status(SW_SUCCESS);
+        case OP_PROCESS:
+            if (cipherKey != keyNum) {
+                return status(SW_INVALID_PARAMETER);
+            }
+            return computeCryptProcess(data);
+        case OP_FINALIZE:
+            if (cipherKey != keyNum) {
+                return status(SW_INVALID_PARAMETER);
+            }
+            cipherKey = -1;
+            byte[] input = cipherInput;
+            cipherInput = new byte[0];
+            return computeCryptFinal(input, data);
+        default:
+            return status(SW_INCORRECT_P2);
+        }
+    }
+
+    private byte[] computeCryptProcess(byte[] data) {
+        // RSA has no intermediate output, input from the APDU is buffered
+        // until final
+        if ((data[0] & 0xff) != DL_APDU) {
+            return status(SW_UNSUPPORTED_FEATURE);
+        }
+        if (!inlineCrypt) {
+            return status(SW_UNKNOWN);
+        }
+        int len = getShort(data, 1);
+        if (len != data.length - 3) {
+            return status(SW_INVALID_PARAMETER);
+        }
+        byte[] input = Arrays.copyOf(cipherInput, cipherInput.length + len);
+        System.arraycopy(data, 3, input, cipherInput.length, len);
+        cipherInput = input;
+
+        return status(SW_SUCCESS);
+    }
+
+    private byte[] computeCryptFinal(byte[] processed, byte[] data) {
+        int dataLocation = data[0] & 0xff;
+        if (dataLocation == DL_OBJECT) {
+            CardObject in = objects.get(IN_OBJ_ID);
+            if (in == null) {
+                return status(SW_OBJECT_NOT_FOUND);
+            }
+            int len = getShort(in.data, 0);
+            byte[] out = rsa(Arrays.copyOfRange(in.data, 2, 2 + len));
+            if (out == null) {
+                return status(SW_INVALID_PARAMETER);
+            }
+            // len | data
+            CardObject result = new CardObject(out.length + 2, loggedIds,
+                    loggedIds, loggedIds);
+            result.data[0] = (byte) (out.length >> 8);
+            result.data[1] = (byte) out.length;
+            System.arraycopy(out, 0, result.data, 2, out.length);
+            objects.put(OUT_OBJ_ID, result);
+            listIterator = null;
+
+            return status(SW_SUCCESS);
+        }
+        if (dataLocation == DL_APDU) {
+            if (!inlineCrypt) {
+                return status(SW_UNKNOWN);
+            }
+            int len = getShort(data, 1);
+            if (len != data.length - 3) {
+                return status(SW_INVALID_PARAMETER);
+            }
+            byte[] in = Arrays.copyOf(processed, processed.length + len);
+            System.arraycopy(data, 3, in, processed.length, len);
+            byte[] out = rsa(in);
+            if (out == null) {
+                return status(SW_INVALID_PARAMETER);
+            }
+            byte[] result = new byte[out.length + 2];
+            result[0] = (byte) (out.length >> 8);
+            result[1] = (byte) out.length;
+            System.arraycopy(out, 0, result, 2, out.length);
+
+            if (!extendedCommand && result.length > MAX_SHORT_LE) {
+                pendingResponse = result;
+                pendingOffset = 0;
+                return nextResponsePart(MAX_SHORT_LE);
+            }
+
+            return response(result, 0, result.length, SW_SUCCESS);
+        }
+
+        return status(SW_INVALID_PARAMETER);
+    }
+
+    private byte[] getResponse(byte[] command) {
+        if (pendingResponse == null) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+        // Le 00 means 256
+        int le = command.length == 5 && command[4] != 0x00 ? command[4] & 0xff
+                : MAX_SHORT_LE;
+
+        return nextResponsePart(le);
+    }
+
+    private byte[] nextResponsePart(int le) {
+        int len = Math.min(le, pendingResponse.length - pendingOffset);
+        int offset = pendingOffset;
+        pendingOffset += len;
+        int remaining = pendingResponse.length - pendingOffset;
+        byte[] data = pendingResponse;
+        if (remaining == 0) {
+            pendingResponse = null;
+            return response(data, offset, len, SW_SUCCESS);
+        }
+
+        // 6100 means 256 or more bytes left
+        int sw2 = remaining > 0xff ? 0x00 : remaining;
+
+        return response(data, offset, len,
+                (short) ((SW1_BYTES_REMAINING << 8) | sw2));
+    }
+
+    private byte[] rsa(byte[] in) {
+        int modLen = (key.getModulus().bitLength() + 7) / 8;
+        if (in.length != modLen) {
+            return null;
+        }
+        BigInteger m = new BigInteger(1, in);
+        if (m.compareTo(key.getModulus()) >= 0) {
+            return null;
+        }
+        byte[] c = m.modPow(key.getPrivateExponent(), key.getModulus())
+                .toByteArray();
+        byte[] result = new byte[modLen];
+        if (c.length > modLen) {
+            System.arraycopy(c, c.length - modLen, result, 0, modLen);
+        } else {
+            System.arraycopy(c, 0, result, modLen - c.length, c.length);
+        }
+
+        return result;
+    }
+
+    private boolean isAllowed(int acl) {
+        if (acl == ACL_FREE) {
+            return true;
+        }
+        if (acl == ACL_NEVER) {
+            return false;
+        }
+
+        return (acl & loggedIds) != 0;
+    }
+
+    // returns null if Lc doesn't match the command length
+    private byte[] getCommandData(byte[] command) {
+        if (command.length <= 5) {
+            // case 1 or 2
+            return new byte[0];
+        }
+        if (command[4] == 0x00) {
+            // extended length
+            if (!extendedLength) {
+                return null;
+            }
+            if (command.length == 7) {
+                // case 2E
+                return new byte[0];
+            }
+            int lc = ((command[5] & 0xff) << 8) | (command[6] & 0xff);
+            if (command.length < 7 + lc) {
+                return null;
+            }
+
+            return Arrays.copyOfRange(command, 7, 7 + lc);
+        }
+        int lc = command[4] & 0xff;
+        if (command.length < 5 + lc) {
+            return null;
+        }
+
+        return Arrays.copyOfRange(command, 5, 5 + lc);
+    }
+
+    private static byte[] status(short sw) {
+        return new byte[] { (byte) (sw >> 8), (byte) sw };
+    }
+
+    private static byte[] response(byte[] data, int offset, int len, short sw) {
+        byte[] result = new byte[len + 2];
+        System.arraycopy(data, offset, result, 0, len);
+        result[len] = (byte) (sw >> 8);
+        result[len + 1] = (byte) sw;
+
+        return result;
+    }
+
+    private static int getInt(byte[] buff, int offset) {
+        return ((buff[offset] & 0xff) << 24) | ((buff[offset + 1] & 0xff) << 16)
+                | ((buff[offset + 2] & 0xff) << 8) | (buff[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] buff, int offset, int i) {
+        buff[offset] = (byte) (i >> 24);
+        buff[offset + 1] = (byte) (i >> 16);
+        buff[offset + 2] = (byte) (i >> 8);
+        buff[offset + 3] = (byte) i;
+    }
+
+    private static void putShort(byte[] buff, int offset, int s) {
+        buff[offset] = (byte) (s >> 8);
+        buff[offset + 1] = (byte) s;
+    }
+
+    private static int getShort(byte[] buff, int offset) {
+        return ((buff[offset] & 0xff) << 8) | (buff[offset + 1] & 0xff);
+    }
+}
@@ -2,43 +2,56 @@ package org.nick.nfcsmime;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Properties;
 
-import org.spongycastle.asn1.ASN1EncodableVector;
-import org.spongycastle.cms.SignerInfoGenerator;
-import org.spongycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
-import org.spongycastle.operator.OperatorCreationException;
-import org.spongycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.spongycastle.operator.ContentSigner;
 
 public class MuscleCardSmimeSender extends SmimeSender {
 
     private MuscleCard msc;
     private X509Certificate signerCert;
     private String pin;
+    private CertificateCache certCache;
 
     public MuscleCardSmimeSender(Properties sessionProps, String userName,
             String password, MuscleCard msc, String pin) {
+        this(sessionProps, userName, password, msc, pin, null);
+    }
+
+    public MuscleCardSmimeSender(Properties sessionProps, String userName,
+            String password, MuscleCard msc, String pin,
+            CertificateCache certCache) {
         super(sessionProps, userName, password);
         this.msc = msc;
         this.pin = pin;
+        this.certCache = certCache;
     }
 
     @Override
     public X509Certificate getSignerCertificate() {
         try {
+            String cardId = certCache == null ? null : msc.getCardIdentity();
+            if (cardId != null) {
+                // always go through the cache, the entry is dropped if the
+                // card key no longer matches
+                signerCert = certCache.get(cardId);
+            }
+
             if (signerCert == null) {
                 byte[] certBytes;
 
-                msc.select();
+                msc.ensureSelected();
                 certBytes = msc.readSignerCertificate();
 
                 CertificateFactory cf = CertificateFactory.getInstance("X509");
                 signerCert = (X509Certificate) cf
                         .generateCertificate(new ByteArrayInputStream(certBytes));
+                if (cardId != null) {
+                    certCache.put(cardId, signerCert);
+                }
             }
 
             return signerCert;
@@ -50,26 +63,25 @@ public class MuscleCardSmimeSender extends SmimeSender {
     }
 
     @Override
-    protected SignerInfoGenerator createSignerInfoGenerator(
-            ASN1EncodableVector signedAttrs) {
-        try {
-            if (msc == null) {
-                throw new IllegalStateException("NFC card not found");
-            }
+    protected void beginBatch() throws Exception {
+        if (msc == null) {
+            throw new IllegalStateException("NFC card not found");
+        }
 
-            msc.select();
-            MuscleCardContentSigner mscCs = new MuscleCardContentSigner(msc,
-                    pin);
+        // one SELECT and VERIFY for the whole batch
+        getSignerCertificate();
+        if (!msc.ensurePinVerified(pin)) {
+            throw new IllegalStateException("Invalid PIN");
+        }
+    }
 
-            return new JcaSignerInfoGeneratorBuilder(
-                    new JcaDigestCalculatorProviderBuilder().setProvider("SC")
-                            .build()).build(mscCs, getSignerCertificate());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } catch (CertificateEncodingException e) {
-            throw new RuntimeException(e);
-        } catch (OperatorCreationException e) {
-            throw new RuntimeException(e);
+    @Override
+    protected ContentSigner createContentSigner() {
+        if (msc == null) {
+            throw new IllegalStateException("NFC card not found");
         }
+
+        return new MuscleCardContentSigner(msc, pin, getSignerCertificate(),
+                certCache);
     }
 }
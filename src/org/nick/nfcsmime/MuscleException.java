@@ -4,11 +4,18 @@ public class MuscleException extends RuntimeException {
 
     private static final long serialVersionUID = 4147940124038306615L;
 
+    private short sw;
+
     public MuscleException(String message) {
         super(message);
     }
 
     public MuscleException(short sw) {
         super("SW: " + String.format("%02X", sw));
+        this.sw = sw;
+    }
+
+    public short getSW() {
+        return sw;
     }
 }
@@ -0,0 +1,138 @@
+package org.nick.nfcsmime;
+
+/**
+ * PKCS#1 v1.5 signature encoding (EMSA-PKCS1-v1_5) from precomputed
+ * templates. Padding and DigestInfo prefix only depend on the hash and key
+ * size, so they are built once, and encoding just copies the digest in.
+ * The hash is identified by the digest length.
+ */
+public class Pkcs1Padding {
+
+    // DER DigestInfo prefixes, RFC 8017, 9.2
+    private static final byte[] SHA256_PREFIX = { 0x30, 0x31, 0x30, 0x0d,
+            0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02,
+            0x01, 0x05, 0x00, 0x04, 0x20 };
+    private static final byte[] SHA384_PREFIX = { 0x30, 0x41, 0x30, 0x0d,
+            0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02,
+            0x02, 0x05, 0x00, 0x04, 0x30 };
+    private static final byte[] SHA512_PREFIX = { 0x30, 0x51, 0x30, 0x0d,
+            0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02,
+            0x03, 0x05, 0x00, 0x04, 0x40 };
+
+    private static final byte[][] PREFIXES = { SHA256_PREFIX, SHA384_PREFIX,
+            SHA512_PREFIX };
+    private static final int[] DIGEST_LENGTHS = { 32, 48, 64 };
+
+    private static final int[] KEY_SIZES = { 1024, 2048, 3072, 4096 };
+
+    // 00 | 01 | FF..FF | 00
+    private static final int MIN_PADDING_LEN = 11;
+
+    // [hash][key size] -> 00 01 FF..FF 00 | prefix | (digest)
+    private static final byte[][][] TEMPLATES = new byte[PREFIXES.length][KEY_SIZES.length][];
+
+    static {
+        for (int i = 0; i < PREFIXES.length; i++) {
+            for (int j = 0; j < KEY_SIZES.length; j++) {
+                TEMPLATES[i][j] = createTemplate(PREFIXES[i],
+                        DIGEST_LENGTHS[i], KEY_SIZES[j] / 8);
+            }
+        }
+    }
+
+    private Pkcs1Padding() {
+    }
+
+    /**
+     * Encodes <code>digest</code> into a new block of
+     * <code>keySize</code> bits.
+     */
+    public static byte[] encode(byte[] digest, int keySize) {
+        byte[] result = new byte[keySize / 8];
+        encode(digest, keySize, result);
+
+        return result;
+    }
+
+    /**
+     * Encodes <code>digest</code> into <code>out</code>, which must be
+     * exactly <code>keySize / 8</code> bytes long and can be reused.
+     */
+    public static void encode(byte[] digest, int keySize, byte[] out) {
+        int keyLen = keySize / 8;
+        if (out.length != keyLen) {
+            throw new IllegalArgumentException("Output must be " + keyLen
+                    + " bytes");
+        }
+
+        int hashIdx = getHashIndex(digest.length);
+        int keyIdx = getKeySizeIndex(keySize);
+        if (keyIdx != -1) {
+            byte[] template = TEMPLATES[hashIdx][keyIdx];
+            System.arraycopy(template, 0, out, 0, keyLen - digest.length);
+        } else {
+            fillTemplate(out, PREFIXES[hashIdx], digest.length);
+        }
+        System.arraycopy(digest, 0, out, keyLen - digest.length,
+                digest.length);
+    }
+
+    /**
+     * Returns the DER DigestInfo for <code>digest</code>.
+     */
+    public static byte[] encodeDigestInfo(byte[] digest) {
+        byte[] prefix = PREFIXES[getHashIndex(digest.length)];
+        byte[] result = new byte[prefix.length + digest.length];
+        System.arraycopy(prefix, 0, result, 0, prefix.length);
+        System.arraycopy(digest, 0, result, prefix.length, digest.length);
+
+        return result;
+    }
+
+    private static byte[] createTemplate(byte[] prefix, int digestLen,
+            int keyLen) {
+        byte[] result = new byte[keyLen];
+        fillTemplate(result, prefix, digestLen);
+
+        return result;
+    }
+
+    private static void fillTemplate(byte[] block, byte[] prefix, int digestLen) {
+        int dataLen = prefix.length + digestLen;
+        if (dataLen + MIN_PADDING_LEN > block.length) {
+            throw new IllegalArgumentException("Key too short for digest");
+        }
+
+        int psEnd = block.length - dataLen - 1;
+        block[0] = 0x00;
+        block[1] = 0x01; // BT 1
+        // PS
+        for (int i = 2; i < psEnd; i++) {
+            block[i] = (byte) 0xff;
+        }
+        // end of padding
+        block[psEnd] = 0x00;
+        System.arraycopy(prefix, 0, block, psEnd + 1, prefix.length);
+    }
+
+    private static int getHashIndex(int digestLen) {
+        for (int i = 0; i < DIGEST_LENGTHS.length; i++) {
+            if (DIGEST_LENGTHS[i] == digestLen) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("Unsupported digest length: "
+                + digestLen);
+    }
+
+    private static int getKeySizeIndex(int keySize) {
+        for (int i = 0; i < KEY_SIZES.length; i++) {
+            if (KEY_SIZES[i] == keySize) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
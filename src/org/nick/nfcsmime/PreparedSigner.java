@@ -0,0 +1,110 @@
+package org.nick.nfcsmime;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import org.spongycastle.asn1.ASN1EncodableVector;
+import org.spongycastle.asn1.cms.AttributeTable;
+import org.spongycastle.asn1.cms.IssuerAndSerialNumber;
+import org.spongycastle.asn1.smime.SMIMECapabilitiesAttribute;
+import org.spongycastle.asn1.smime.SMIMECapability;
+import org.spongycastle.asn1.smime.SMIMECapabilityVector;
+import org.spongycastle.asn1.smime.SMIMEEncryptionKeyPreferenceAttribute;
+import org.spongycastle.cert.X509CertificateHolder;
+import org.spongycastle.cert.jcajce.JcaCertStore;
+import org.spongycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.spongycastle.cms.CMSAttributeTableGenerator;
+import org.spongycastle.cms.CMSException;
+import org.spongycastle.cms.CMSSignedDataStreamGenerator;
+import org.spongycastle.cms.DefaultSignedAttributeTableGenerator;
+import org.spongycastle.cms.SignerInfoGenerator;
+import org.spongycastle.cms.SignerInfoGeneratorBuilder;
+import org.spongycastle.mail.smime.SMIMESignedGenerator;
+import org.spongycastle.operator.ContentSigner;
+import org.spongycastle.operator.DigestCalculatorProvider;
+import org.spongycastle.operator.OperatorCreationException;
+import org.spongycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.spongycastle.util.Store;
+
+/**
+ * Everything needed to sign messages that only depends on the signer
+ * certificate: signed attributes, certificate store, digest provider.
+ * Built once per certificate and immutable, so it can be shared between
+ * messages and threads. Only the stateful <code>ContentSigner</code> has to
+ * be created per message.
+ */
+public class PreparedSigner {
+
+    private final X509Certificate signerCert;
+    private final X509CertificateHolder signerCertHolder;
+    private final Store certs;
+    private final CMSAttributeTableGenerator signedAttrGen;
+    private final DigestCalculatorProvider digestCalculatorProvider;
+
+    public PreparedSigner(X509Certificate signerCert)
+            throws CertificateEncodingException, OperatorCreationException {
+        this.signerCert = signerCert;
+        this.signerCertHolder = new JcaX509CertificateHolder(signerCert);
+        this.certs = new JcaCertStore(Arrays.asList(signerCert));
+
+        ASN1EncodableVector signedAttrs = new ASN1EncodableVector();
+        SMIMECapabilityVector caps = new SMIMECapabilityVector();
+
+        caps.addCapability(SMIMECapability.aES256_CBC);
+        caps.addCapability(SMIMECapability.dES_EDE3_CBC);
+        caps.addCapability(SMIMECapability.dES_CBC);
+
+        signedAttrs.add(new SMIMECapabilitiesAttribute(caps));
+
+        // for encrypted responses
+        IssuerAndSerialNumber issAndSer = new IssuerAndSerialNumber(
+                signerCertHolder.getSubject(), signerCert.getSerialNumber());
+        signedAttrs.add(new SMIMEEncryptionKeyPreferenceAttribute(issAndSer));
+
+        this.signedAttrGen = new DefaultSignedAttributeTableGenerator(
+                new AttributeTable(signedAttrs));
+        this.digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder()
+                .setProvider("SC").build();
+    }
+
+    public X509Certificate getSignerCertificate() {
+        return signerCert;
+    }
+
+    /**
+     * Returns a generator for a single message. Generators are cheap, but
+     * not thread safe: the signature is only computed when the generated
+     * multipart is written out.
+     */
+    public SMIMESignedGenerator createGenerator(ContentSigner contentSigner)
+            throws OperatorCreationException {
+        SMIMESignedGenerator gen = new SMIMESignedGenerator();
+        gen.addSignerInfoGenerator(createSignerInfoGenerator(contentSigner));
+        gen.addCertificates(certs);
+
+        return gen;
+    }
+
+    /**
+     * Returns a CMS generator for a single message, with the same signer
+     * setup as {@link #createGenerator(ContentSigner)}. Used to compute
+     * detached signatures while the content is streamed out.
+     */
+    public CMSSignedDataStreamGenerator createStreamGenerator(
+            ContentSigner contentSigner) throws OperatorCreationException,
+            CMSException {
+        CMSSignedDataStreamGenerator gen = new CMSSignedDataStreamGenerator();
+        gen.addSignerInfoGenerator(createSignerInfoGenerator(contentSigner));
+        gen.addCertificates(certs);
+
+        return gen;
+    }
+
+    private SignerInfoGenerator createSignerInfoGenerator(
+            ContentSigner contentSigner) throws OperatorCreationException {
+        return new SignerInfoGeneratorBuilder(digestCalculatorProvider)
+                .setSignedAttributeGenerator(signedAttrGen).build(
+                        contentSigner, signerCertHolder);
+    }
+}
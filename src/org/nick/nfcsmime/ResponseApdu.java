@@ -1,53 +1,101 @@
 package org.nick.nfcsmime;
 
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 
+/**
+ * A view over a raw response (data | SW1 | SW2). The raw buffer is not
+ * copied, so it must not be modified while the view is in use. Use
+ * <code>copyData()</code> or <code>asByteBuffer()</code> to get at the data
+ * without allocating a new array.
+ */
 public class ResponseApdu {
 
     private static final byte SW1_BYTES_REMAINING = 0x61;
 
-    private byte[] data;
-    private byte sw1;
-    private byte sw2;
-    private short sw;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final byte[] raw;
+    private final int dataLength;
 
     public ResponseApdu(byte[] raw) {
-        this.data = getData(raw);
-        this.sw = getStatus(raw);
-        this.sw1 = raw[raw.length - 2];
-        this.sw2 = raw[raw.length - 1];
+        if (raw.length < 2) {
+            throw new IllegalArgumentException("Invalid response length: "
+                    + raw.length);
+        }
+        this.raw = raw;
+        this.dataLength = raw.length - 2;
     }
 
+    /**
+     * <code>sw</code> must match <code>sw1</code> and <code>sw2</code>, it
+     * is kept for compatibility.
+     */
     public ResponseApdu(byte[] data, byte sw1, byte sw2, short sw) {
-        this.data = data.clone();
-        this.sw1 = sw1;
-        this.sw2 = sw2;
-        this.sw = sw;
+        short expected = (short) ((sw1 << 8) | (sw2 & 0xff));
+        if (sw != expected) {
+            throw new IllegalArgumentException(String.format(
+                    "SW %04X doesn't match SW1 SW2 %02X %02X", sw & 0xffff,
+                    sw1, sw2));
+        }
+        this.raw = Arrays.copyOf(data, data.length + 2);
+        this.raw[data.length] = sw1;
+        this.raw[data.length + 1] = sw2;
+        this.dataLength = data.length;
     }
 
+    /**
+     * Returns a copy of the response data. Prefer <code>copyData()</code> or
+     * <code>asByteBuffer()</code> on hot paths.
+     */
     public byte[] getData() {
-        return data == null ? new byte[0] : data.clone();
+        return dataLength == 0 ? EMPTY : Arrays.copyOf(raw, dataLength);
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Copies <code>len</code> bytes of data starting at <code>offset</code>
+     * into <code>dest</code>.
+     */
+    public void copyData(int offset, byte[] dest, int destOffset, int len) {
+        if (offset < 0 || len < 0 || offset + len > dataLength) {
+            throw new IndexOutOfBoundsException("Invalid range: " + offset
+                    + "+" + len + ", data length " + dataLength);
+        }
+        System.arraycopy(raw, offset, dest, destOffset, len);
+    }
+
+    /**
+     * Returns a read-only, big endian buffer over the data, without the
+     * status word.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(raw, 0, dataLength).slice().asReadOnlyBuffer();
     }
 
     public byte getSW1() {
-        return sw1;
+        return raw[dataLength];
     }
 
     public byte getSW2() {
-        return sw2;
+        return raw[dataLength + 1];
     }
 
     public short getSW() {
-        return sw;
+        return getStatus(raw);
     }
 
     @Override
     public String toString() {
-        String swStr = String.format("%02X", sw);
-        if (data != null) {
-            return String.format("%s %s", Hex.toHex(data), swStr);
+        String swStr = String.format("%02X", getSW());
+        if (dataLength > 0) {
+            return String.format("%s %s", Hex.toHex(raw, 0, dataLength),
+                    swStr);
         }
 
         return String.format("%s", swStr);
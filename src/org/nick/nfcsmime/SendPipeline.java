@@ -0,0 +1,136 @@
+package org.nick.nfcsmime;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Transport;
+
+import android.util.Log;
+
+/**
+ * Signs and sends messages in two stages. Messages are signed one at a time
+ * on a single thread, since the card can only compute one signature at a
+ * time, and handed to a send stage that uses one thread per pooled SMTP
+ * connection. Signing never waits for the network, and
+ * {@link #submit(MailMessage)} blocks once <code>maxPending</code> messages
+ * are waiting to be signed or sent.
+ */
+public class SendPipeline {
+
+    private static final String TAG = SendPipeline.class.getSimpleName();
+
+    private final SmimeSender sender;
+    private final SmtpTransportPool transportPool;
+    private final Semaphore pending;
+    private final ExecutorService signExecutor;
+    private final ExecutorService sendExecutor;
+
+    public SendPipeline(SmimeSender sender, SmtpTransportPool transportPool,
+            int maxPending) {
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("Invalid queue size: "
+                    + maxPending);
+        }
+        this.sender = sender;
+        this.transportPool = transportPool;
+        this.pending = new Semaphore(maxPending);
+        this.signExecutor = Executors.newSingleThreadExecutor();
+        // borrow() blocks when all connections are busy, so more threads
+        // than connections would only add waiters
+        this.sendExecutor = Executors.newFixedThreadPool(transportPool
+                .getMaxConnections());
+    }
+
+    /**
+     * Queues <code>msg</code> for signing and sending. Blocks while the
+     * pipeline is full. The returned future completes when the message has
+     * been sent or has failed; cancelling it before it is signed skips it.
+     */
+    public Future<SendResult> submit(final MailMessage msg)
+            throws InterruptedException {
+        pending.acquire();
+
+        final byte[][] signed = new byte[1][];
+        final Exception[] signError = new Exception[1];
+        final FutureTask<SendResult> result = new FutureTask<SendResult>(
+                new Callable<SendResult>() {
+                    @Override
+                    public SendResult call() {
+                        if (signError[0] != null) {
+                            return new SendResult(msg, signError[0]);
+                        }
+
+                        return send(msg, signed[0]);
+                    }
+                }) {
+            @Override
+            protected void done() {
+                pending.release();
+            }
+        };
+
+        try {
+            signExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (result.isCancelled()) {
+                        return;
+                    }
+                    try {
+                        signed[0] = sender.signMessage(msg);
+                        sendExecutor.execute(result);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Error signing " + msg + ": "
+                                + e.getMessage(), e);
+                        signError[0] = e;
+                        // completes the future with the error
+                        result.run();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            signError[0] = e;
+            result.run();
+        }
+
+        return result;
+    }
+
+    private SendResult send(MailMessage msg, byte[] signedMessage) {
+        Transport transport = null;
+        Exception error = null;
+        try {
+            transport = transportPool.borrow();
+            sender.sendSignedMessage(transport, signedMessage);
+
+            return new SendResult(msg);
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending " + msg + ": " + e.getMessage(), e);
+            error = e;
+
+            return new SendResult(msg, e);
+        } finally {
+            if (transport != null) {
+                transportPool.release(transport, error);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting messages, waits until everything already submitted
+     * has been signed and sent, then closes all SMTP connections.
+     */
+    public void shutdown() throws InterruptedException {
+        signExecutor.shutdown();
+        signExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        sendExecutor.shutdown();
+        sendExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        transportPool.close();
+    }
+}
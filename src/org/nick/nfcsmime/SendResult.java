@@ -0,0 +1,34 @@
+package org.nick.nfcsmime;
+
+public class SendResult {
+
+    private MailMessage message;
+    private Exception error;
+
+    public SendResult(MailMessage message) {
+        this(message, null);
+    }
+
+    public SendResult(MailMessage message, Exception error) {
+        this.message = message;
+        this.error = error;
+    }
+
+    public MailMessage getMessage() {
+        return message;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SendResult[%s, %s]", message,
+                isSuccess() ? "OK" : error.getMessage());
+    }
+}
@@ -0,0 +1,73 @@
+package org.nick.nfcsmime;
+
+/**
+ * Progress of a single card signature, so it can be resumed after the card
+ * was lost and presented again. Each step only starts once the previous one
+ * has been confirmed by the card, and repeating a step that may or may not
+ * have completed gives the same result.
+ */
+public class SignatureOperation {
+
+    public enum Step {
+        // nothing on the card yet, or in-APDU crypt which keeps no state
+        STARTED,
+        // IN/OUT objects exist
+        OBJECTS_ALLOCATED,
+        // IN holds the encryption block
+        BLOCK_WRITTEN,
+        // OUT holds the signature
+        CRYPT_DONE,
+        DONE
+    }
+
+    private final byte[] digest;
+    private String cardIdentity;
+
+    Step step = Step.STARTED;
+    // bytes of the IN object written so far
+    int blockWritten;
+    byte[] signature;
+    // bytes of the signature read from OUT so far
+    int signatureRead;
+
+    SignatureOperation(byte[] digest, String cardIdentity) {
+        this.digest = digest.clone();
+        this.cardIdentity = cardIdentity;
+    }
+
+    public Step getStep() {
+        return step;
+    }
+
+    public boolean isDone() {
+        return step == Step.DONE;
+    }
+
+    byte[] getDigest() {
+        return digest;
+    }
+
+    /**
+     * Whether progress was made on the card with <code>cardIdentity</code>.
+     * Cards that don't report an identity can't be matched, so the
+     * operation starts over.
+     */
+    boolean isSameCard(String cardIdentity) {
+        return this.cardIdentity != null
+                && this.cardIdentity.equals(cardIdentity);
+    }
+
+    void restart(String cardIdentity) {
+        this.cardIdentity = cardIdentity;
+        step = Step.STARTED;
+        blockWritten = 0;
+        signature = null;
+        signatureRead = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SignatureOperation[" + step + ", written=" + blockWritten
+                + ", read=" + signatureRead + "]";
+    }
+}
@@ -0,0 +1,442 @@
+package org.nick.nfcsmime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+
+import android.util.Log;
+
+/**
+ * Runs signing and sending jobs in the background. Jobs that talk to the
+ * card run on a single card lane, one at a time, everything else (SMTP,
+ * file I/O) runs on a separate worker lane, so network latency never holds
+ * up the card. Callbacks are delivered on the executor passed to the
+ * constructor, e.g. the UI thread.
+ */
+public class SigningService {
+
+    private static final String TAG = SigningService.class.getSimpleName();
+
+    public enum Lane {
+        CARD, WORKER
+    }
+
+    public enum Stage {
+        QUEUED, SIGNING, SENDING
+    }
+
+    /**
+     * Job callbacks. Exactly one of <code>onSuccess()</code>,
+     * <code>onError()</code> and <code>onCancelled()</code> is called.
+     */
+    public static abstract class Callback<T> {
+
+        public void onProgress(Stage stage) {
+        }
+
+        public abstract void onSuccess(T result);
+
+        public abstract void onError(Exception e);
+
+        public void onCancelled() {
+        }
+    }
+
+    /**
+     * A submitted job. Cancelling a job stops it before its next stage
+     * starts; a card command or SMTP transaction that is already running is
+     * allowed to finish, and cancelling fails once a message is being sent.
+     */
+    public static class Job<T> extends FutureTask<T> {
+
+        private static final Runnable NOOP = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        private final Executor callbackExecutor;
+        private final Callback<T> callback;
+        // guarded by this
+        private boolean committed;
+        private volatile Runnable cleanup;
+
+        Job(Executor callbackExecutor, Callback<T> callback) {
+            super(NOOP, null);
+            this.callbackExecutor = callbackExecutor;
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (committed) {
+                    return false;
+                }
+
+                return super.cancel(mayInterruptIfRunning);
+            }
+        }
+
+        // from here on the job can't be cancelled. False if it already
+        // finished or was cancelled.
+        synchronized boolean commit() {
+            if (isDone()) {
+                return false;
+            }
+            committed = true;
+
+            return true;
+        }
+
+        // runs when the job finishes, however it finishes. Must not block,
+        // it may be called on the callback thread.
+        void setCleanup(Runnable cleanup) {
+            this.cleanup = cleanup;
+        }
+
+        void progress(final Stage stage) {
+            if (callback == null || isDone()) {
+                return;
+            }
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onProgress(stage);
+                }
+            });
+        }
+
+        void complete(T result) {
+            set(result);
+        }
+
+        void fail(Exception e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            Runnable cleanup = this.cleanup;
+            if (cleanup != null) {
+                cleanup.run();
+            }
+            if (callback == null) {
+                return;
+            }
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCancelled()) {
+                        callback.onCancelled();
+                        return;
+                    }
+                    try {
+                        callback.onSuccess(get());
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception) {
+                            callback.onError((Exception) cause);
+                        } else {
+                            callback.onError(new RuntimeException(cause));
+                        }
+                    } catch (InterruptedException e) {
+                        // done, get() doesn't block
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+    }
+
+    private final Executor callbackExecutor;
+    private final ThreadPoolExecutor cardExecutor;
+    private final ThreadPoolExecutor workerExecutor;
+
+    public SigningService(Executor callbackExecutor, int workerThreads) {
+        this.callbackExecutor = callbackExecutor;
+        this.cardExecutor = createExecutor(1);
+        this.workerExecutor = createExecutor(workerThreads);
+    }
+
+    /**
+     * Runs <code>task</code> on <code>lane</code>.
+     */
+    public <T> Job<T> submit(Lane lane, final Callable<T> task,
+            Callback<T> callback) {
+        final Job<T> job = new Job<T>(callbackExecutor, callback);
+        job.progress(Stage.QUEUED);
+        execute(getExecutor(lane), job, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    job.complete(task.call());
+                } catch (Exception e) {
+                    job.fail(e);
+                }
+            }
+        });
+
+        return job;
+    }
+
+    /**
+     * Signs <code>msg</code> and returns the encoded signed message.
+     */
+    public Job<byte[]> sign(final SmimeSender sender, final MailMessage msg,
+            Callback<byte[]> callback) {
+        final Job<byte[]> job = new Job<byte[]>(callbackExecutor, callback);
+        job.progress(Stage.QUEUED);
+        execute(cardExecutor, job, new Runnable() {
+            @Override
+            public void run() {
+                job.progress(Stage.SIGNING);
+                try {
+                    job.complete(sender.signMessage(msg));
+                } catch (Exception e) {
+                    job.fail(e);
+                }
+            }
+        });
+
+        return job;
+    }
+
+    /**
+     * Signs and sends <code>msg</code>. The SMTP connection is opened and
+     * the message is built and hashed on the worker lane while the card is
+     * selected and the PIN verified, so only the signature itself is left
+     * on the card lane before the message is sent. Needs two worker threads
+     * to overlap network and card time. The connection is closed unused if
+     * the job fails or is cancelled before sending.
+     */
+    public Job<Void> sendMail(final SmimeSender sender, final MailMessage msg,
+            Callback<Void> callback) {
+        final Job<Void> job = new Job<Void>(callbackExecutor, callback);
+        job.progress(Stage.QUEUED);
+        final SpeculativeConnect connect = new SpeculativeConnect(sender,
+                workerExecutor);
+        job.setCleanup(new Runnable() {
+            @Override
+            public void run() {
+                connect.abandon();
+            }
+        });
+        execute(workerExecutor, job, connect);
+        execute(cardExecutor, job, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sender.beginBatch();
+                } catch (Exception e) {
+                    // reported by the signing stage, which repeats this
+                    Log.w(TAG, "Error preparing card: " + e.getMessage());
+                }
+            }
+        });
+        execute(workerExecutor, job, new Runnable() {
+            @Override
+            public void run() {
+                job.progress(Stage.SIGNING);
+                byte[] signedMessage;
+                try {
+                    signedMessage = sender.signMessage(msg, cardExecutor);
+                } catch (Exception e) {
+                    job.fail(e);
+                    return;
+                }
+                // cancelled while signing
+                if (!job.commit()) {
+                    return;
+                }
+
+                job.progress(Stage.SENDING);
+                try {
+                    Transport transport = connect.take();
+                    try {
+                        sender.sendSignedMessage(transport, signedMessage);
+                    } finally {
+                        transport.close();
+                    }
+                    job.complete(null);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error sending " + msg + ": " + e.getMessage(),
+                            e);
+                    job.fail(e);
+                }
+            }
+        });
+
+        return job;
+    }
+
+    /**
+     * Cancels all queued jobs and stops the lanes. Running card commands and
+     * SMTP transactions are allowed to finish.
+     */
+    public void shutdown() {
+        // no shutdownNow(), interrupting a card command or SMTP transaction
+        // half way leaves the card or connection in an unknown state
+        cancelQueued(cardExecutor);
+        cancelQueued(workerExecutor);
+        cardExecutor.shutdown();
+        workerExecutor.shutdown();
+    }
+
+    private static void cancelQueued(ThreadPoolExecutor executor) {
+        List<Runnable> queued = new ArrayList<Runnable>();
+        executor.getQueue().drainTo(queued);
+        for (Runnable r : queued) {
+            if (r instanceof StageRunnable) {
+                ((StageRunnable) r).job.cancel(false);
+            } else if (r instanceof Future) {
+                // card steps of SmimeSender.signMessage(msg, executor)
+                ((Future<?>) r).cancel(false);
+            } else {
+                // cleanup, e.g. closing a speculative SMTP connection
+                executor.execute(r);
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    }
+
+    private ExecutorService getExecutor(Lane lane) {
+        return lane == Lane.CARD ? cardExecutor : workerExecutor;
+    }
+
+    private static void execute(ExecutorService executor, Job<?> job,
+            Runnable stage) {
+        try {
+            executor.execute(new StageRunnable(job, stage));
+        } catch (RejectedExecutionException e) {
+            job.fail(e);
+        }
+    }
+
+    // SMTP connection opened ahead of the signature. Either taken by the send
+    // stage or, once abandoned, closed on closeExecutor as soon as the
+    // connect has finished. A connect still waiting in the queue is skipped
+    // along with the rest of the job, so it is never cancelled here: the
+    // result of a running connect would be lost.
+    private static class SpeculativeConnect extends FutureTask<Transport> {
+
+        private final Executor closeExecutor;
+        // set by whoever owns the connection, take() or the close
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile boolean abandoned;
+
+        SpeculativeConnect(final SmimeSender sender, Executor closeExecutor) {
+            super(new Callable<Transport>() {
+                @Override
+                public Transport call() throws Exception {
+                    return sender.connectTransport();
+                }
+            });
+            this.closeExecutor = closeExecutor;
+        }
+
+        // connects now if the connect stage hasn't started yet
+        Transport take() throws Exception {
+            run();
+            Transport transport;
+            try {
+                transport = get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+            if (!claimed.compareAndSet(false, true)) {
+                throw new IllegalStateException("Connection already closed");
+            }
+
+            return transport;
+        }
+
+        void abandon() {
+            abandoned = true;
+            if (isDone()) {
+                closeTransport();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (abandoned) {
+                closeTransport();
+            }
+        }
+
+        private void closeTransport() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            final Transport transport;
+            try {
+                transport = get();
+            } catch (ExecutionException e) {
+                // connect failed, nothing to close
+                return;
+            } catch (InterruptedException e) {
+                // done, get() doesn't block
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                // QUIT is a network round trip, abandon() may be called on
+                // the UI thread
+                closeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            transport.close();
+                        } catch (MessagingException e) {
+                            Log.w(TAG, "Error closing connection: "
+                                    + e.getMessage());
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Connection left open, service shut down");
+            }
+        }
+    }
+
+    // skips the stage if the job was cancelled while it was queued
+    private static class StageRunnable implements Runnable {
+
+        private final Job<?> job;
+        private final Runnable stage;
+
+        StageRunnable(Job<?> job, Runnable stage) {
+            this.job = job;
+            this.stage = stage;
+        }
+
+        @Override
+        public void run() {
+            if (!job.isDone()) {
+                stage.run();
+            }
+        }
+    }
+}
@@ -1,46 +1,64 @@
 package org.nick.nfcsmime;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import javax.mail.Address;
 import javax.mail.Authenticator;
 import javax.mail.Message;
+import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.util.SharedByteArrayInputStream;
 
-import org.spongycastle.asn1.ASN1EncodableVector;
-import org.spongycastle.asn1.cms.IssuerAndSerialNumber;
-import org.spongycastle.asn1.smime.SMIMECapabilitiesAttribute;
-import org.spongycastle.asn1.smime.SMIMECapability;
-import org.spongycastle.asn1.smime.SMIMECapabilityVector;
-import org.spongycastle.asn1.smime.SMIMEEncryptionKeyPreferenceAttribute;
-import org.spongycastle.asn1.x500.X500Name;
-import org.spongycastle.cert.jcajce.JcaCertStore;
-import org.spongycastle.cms.SignerInfoGenerator;
+import org.spongycastle.asn1.x509.AlgorithmIdentifier;
+import org.spongycastle.cms.CMSSignedDataStreamGenerator;
+import org.spongycastle.cms.SignerInformation;
+import org.spongycastle.cms.SignerInformationVerifier;
+import org.spongycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.spongycastle.mail.smime.SMIMESigned;
 import org.spongycastle.mail.smime.SMIMESignedGenerator;
-import org.spongycastle.util.Store;
+import org.spongycastle.operator.ContentSigner;
 import org.spongycastle.x509.extension.X509ExtensionUtil;
 
-import android.os.Environment;
+import android.util.Log;
 
 public abstract class SmimeSender {
 
+    private static final String TAG = SmimeSender.class.getSimpleName();
+
+    private static final int DEFAULT_ENCODED_SIZE = 8 * 1024;
+    private static final int ENCODED_SIZE_SLACK = 512;
+    // "Content-Type: "
+    private static final int CONTENT_TYPE_HEADER_LEN = 14;
+
     private Properties sessionProps;
     private String userName;
     private String password;
     private Authenticator authenticator;
+    private Session session;
+    private volatile MessageArchive archive;
+    private volatile boolean verifySignedMessages;
+    private volatile int encodedSizeHint = DEFAULT_ENCODED_SIZE;
+    private volatile Metrics metrics = Metrics.getDefault();
+    private PreparedSigner preparedSigner;
 
     public SmimeSender(Properties sessionProps, String userName, String password) {
         this.sessionProps = sessionProps;
@@ -60,63 +78,349 @@ public abstract class SmimeSender {
 
     public void sendMail(String from, String to, String subject, String body)
             throws Exception {
+        sendSignedMessage(signMessage(new MailMessage(from, to, subject, body)));
+    }
+
+    /**
+     * Sends a message encoded by {@link #signMessage(MailMessage)} over a
+     * new SMTP connection.
+     */
+    public void sendSignedMessage(byte[] signedMessage) throws Exception {
+        Transport transport = connectTransport();
+        try {
+            sendSignedMessage(transport, signedMessage);
+        } finally {
+            transport.close();
+        }
+    }
+
+    /**
+     * Signs and sends a message with attachments. The message is signed
+     * while it is sent, so the signer (and card) must stay available until
+     * this returns. Streamed messages are not archived.
+     */
+    public void sendMail(MailMessage msg, List<MailAttachment> attachments)
+            throws Exception {
+        MimeMessage signedMessage = createStreamingMessage(msg, attachments);
+        Transport transport = connectTransport();
+        try {
+            transport.sendMessage(signedMessage,
+                    signedMessage.getAllRecipients());
+        } finally {
+            transport.close();
+        }
+    }
+
+    /**
+     * Returns a signed message with attachments that is hashed and signed
+     * each time it is written out, in constant memory. Write it to a spool
+     * file to sign it once and send it later.
+     */
+    public MimeMessage createStreamingMessage(MailMessage msg,
+            List<MailAttachment> attachments) throws Exception {
         X509Certificate signerCert = getSignerCertificate();
         if (signerCert == null) {
             throw new IllegalStateException(
                     "Load signing certificate and key first.");
         }
 
-        ASN1EncodableVector signedAttrs = new ASN1EncodableVector();
-        SMIMECapabilityVector caps = new SMIMECapabilityVector();
+        ContentSigner contentSigner = new TimedContentSigner(
+                createContentSigner(), metrics);
+        CMSSignedDataStreamGenerator gen = getPreparedSigner(signerCert)
+                .createStreamGenerator(contentSigner);
+
+        return new StreamingSignedMessage(getSession(), msg, attachments, gen,
+                contentSigner.getAlgorithmIdentifier());
+    }
+
+    /**
+     * Sets an archive that gets a copy of every sent message, or
+     * <code>null</code> to disable archiving (the default).
+     */
+    public void setArchive(MessageArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Signs and sends a batch of messages. All messages are signed first, so
+     * card-based senders only need the card for the signing phase, then the
+     * signed messages are sent over a single SMTP connection. A failure only
+     * affects its own message.
+     */
+    public List<SendResult> sendMails(List<MailMessage> messages) {
+        List<SendResult> results = new ArrayList<SendResult>(messages.size());
+        try {
+            beginBatch();
+        } catch (Exception e) {
+            Log.e(TAG, "Error starting batch: " + e.getMessage(), e);
+            for (MailMessage msg : messages) {
+                results.add(new SendResult(msg, e));
+            }
+
+            return results;
+        }
+
+        List<byte[]> signedMessages = new ArrayList<byte[]>(messages.size());
+        for (MailMessage msg : messages) {
+            try {
+                signedMessages.add(signMessage(msg));
+                results.add(new SendResult(msg));
+            } catch (Exception e) {
+                Log.e(TAG, "Error signing " + msg + ": " + e.getMessage(), e);
+                signedMessages.add(null);
+                results.add(new SendResult(msg, e));
+            }
+        }
+
+        Transport transport = null;
+        try {
+            for (int i = 0; i < signedMessages.size(); i++) {
+                if (signedMessages.get(i) == null) {
+                    continue;
+                }
+                try {
+                    if (transport == null || !transport.isConnected()) {
+                        transport = connectTransport();
+                    }
+                    sendSignedMessage(transport, signedMessages.get(i));
+                } catch (Exception e) {
+                    MailMessage msg = messages.get(i);
+                    Log.e(TAG, "Error sending " + msg + ": " + e.getMessage(),
+                            e);
+                    results.set(i, new SendResult(msg, e));
+                }
+            }
+        } finally {
+            if (transport != null) {
+                try {
+                    transport.close();
+                } catch (MessagingException e) {
+                    Log.w(TAG, "Error closing transport: " + e.getMessage());
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Called once before a batch is signed. Subclasses can set up anything
+     * that is shared by all messages in the batch.
+     */
+    protected void beginBatch() throws Exception {
+    }
+
+    /**
+     * Sets where signing and SMTP stage latencies are recorded, the default
+     * is {@link Metrics#getDefault()}.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * If enabled, every signed message is parsed back and its signature
+     * verified before it is sent. Off by default.
+     */
+    public void setVerifySignedMessages(boolean verifySignedMessages) {
+        this.verifySignedMessages = verifySignedMessages;
+    }
+
+    /**
+     * Signs <code>msg</code> and returns the encoded signed message. The
+     * signature is only computed when the message is written out, so the
+     * message is serialized exactly once, and the same bytes are sent and
+     * archived.
+     */
+    public byte[] signMessage(MailMessage msg) throws Exception {
+        return signMessage(msg, null);
+    }
+
+    /**
+     * Like {@link #signMessage(MailMessage)}, but the steps that may need the
+     * card (signer certificate, content signer and signature) run on
+     * <code>cardExecutor</code>, and the MIME build, canonicalization and
+     * content digest run on the calling thread. Must not be called on
+     * <code>cardExecutor</code> itself.
+     */
+    public byte[] signMessage(MailMessage msg, Executor cardExecutor)
+            throws Exception {
+        long start = System.nanoTime();
+        X509Certificate signerCert = callOn(cardExecutor,
+                new Callable<X509Certificate>() {
+                    @Override
+                    public X509Certificate call() {
+                        return getSignerCertificate();
+                    }
+                });
+        if (signerCert == null) {
+            throw new IllegalStateException(
+                    "Load signing certificate and key first.");
+        }
+        metrics.lap(Metrics.Stage.CERT_FETCH, start);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(
+                encodedSizeHint);
+        signMail(signerCert, msg, baos, cardExecutor);
+        encodedSizeHint = baos.size() + ENCODED_SIZE_SLACK;
+        byte[] signedMessage = baos.toByteArray();
+        if (verifySignedMessages) {
+            verifySignedMessage(signedMessage, signerCert);
+        }
+
+        return signedMessage;
+    }
+
+    /**
+     * Sends a message encoded by {@link #signMessage(MailMessage)} over an
+     * already connected transport.
+     */
+    void sendSignedMessage(Transport transport, byte[] encodedMessage)
+            throws Exception {
+        long start = System.nanoTime();
+        // parsed messages are written out as is, sendMessage()
+        // doesn't call saveChanges(). A SharedInputStream lets the parsed
+        // message reference the encoded bytes instead of copying them.
+        MimeMessage signedMessage = new MimeMessage(getSession(),
+                new SharedByteArrayInputStream(encodedMessage));
+        transport.sendMessage(signedMessage, signedMessage.getAllRecipients());
+        metrics.lap(Metrics.Stage.TRANSPORT_SEND, start);
+        MessageArchive archive = this.archive;
+        if (archive != null) {
+            archive.add(encodedMessage);
+        }
+    }
 
-        caps.addCapability(SMIMECapability.aES256_CBC);
-        caps.addCapability(SMIMECapability.dES_EDE3_CBC);
-        caps.addCapability(SMIMECapability.dES_CBC);
+    /**
+     * Returns a new, connected and authenticated SMTP transport.
+     */
+    Transport connectTransport() throws MessagingException {
+        long start = System.nanoTime();
+        Transport transport = getSession().getTransport("smtp");
+        transport.connect(userName, password);
+        metrics.lap(Metrics.Stage.TRANSPORT_CONNECT, start);
 
-        signedAttrs.add(new SMIMECapabilitiesAttribute(caps));
+        return transport;
+    }
 
-        // for encrypted responses
-        IssuerAndSerialNumber issAndSer = new IssuerAndSerialNumber(
-                new X500Name(signerCert.getSubjectDN().getName()),
-                signerCert.getSerialNumber());
-        signedAttrs.add(new SMIMEEncryptionKeyPreferenceAttribute(issAndSer));
+    /**
+     * Returns a pipeline that signs and sends messages concurrently, over at
+     * most <code>maxConnections</code> persistent SMTP connections.
+     * <code>maxPending</code> bounds the number of submitted messages that
+     * haven't been sent yet.
+     */
+    public SendPipeline createSendPipeline(int maxConnections, int maxPending) {
+        return new SendPipeline(this, new SmtpTransportPool(this,
+                maxConnections), maxPending);
+    }
 
-        SMIMESignedGenerator gen = new SMIMESignedGenerator();
-        gen.addSignerInfoGenerator(createSignerInfoGenerator(signedAttrs));
+    private synchronized Session getSession() {
+        if (session == null) {
+            session = Session.getInstance(sessionProps, authenticator);
+        }
 
-        Store certs = new JcaCertStore(Arrays.asList(signerCert));
-        gen.addCertificates(certs);
+        return session;
+    }
 
-        Session session = Session.getInstance(sessionProps, authenticator);
+    private void signMail(X509Certificate signerCert, MailMessage msg,
+            OutputStream out, Executor cardExecutor) throws Exception {
+        long start = System.nanoTime();
+        ContentSigner signer = callOn(cardExecutor,
+                new Callable<ContentSigner>() {
+                    @Override
+                    public ContentSigner call() {
+                        return createContentSigner();
+                    }
+                });
+        if (cardExecutor != null) {
+            signer = new ExecutorContentSigner(signer, cardExecutor);
+        }
+        TimedContentSigner contentSigner = new TimedContentSigner(signer,
+                metrics);
+        SMIMESignedGenerator gen = getPreparedSigner(signerCert)
+                .createGenerator(contentSigner);
+        start = metrics.lap(Metrics.Stage.SIGNER_SETUP, start);
 
-        Address fromUser = new InternetAddress(from);
-        Address toUser = new InternetAddress(to);
+        Address fromUser = new InternetAddress(msg.getFrom());
+        Address toUser = new InternetAddress(msg.getTo());
 
-        MimeMessage mimeMsg = new MimeMessage(session);
+        MimeMessage mimeMsg = new MimeMessage(getSession());
         mimeMsg.setFrom(fromUser);
         mimeMsg.setRecipient(Message.RecipientType.TO, toUser);
-        mimeMsg.setSubject(subject);
-        mimeMsg.setContent(body, "text/plain");
+        mimeMsg.setSubject(msg.getSubject());
+        mimeMsg.setContent(msg.getBody(), "text/plain");
         mimeMsg.saveChanges();
 
+        // generate() drops some headers from mimeMsg, so take them first
+        List<String> headers = new ArrayList<String>();
+        Enumeration<?> headerLines = mimeMsg.getNonMatchingHeaderLines(new String[] {
+                "Content-Type", "Content-Transfer-Encoding" });
+        while (headerLines.hasMoreElements()) {
+            headers.add((String) headerLines.nextElement());
+        }
+
         MimeMultipart mm = gen.generate(mimeMsg, "SC");
-        MimeMessage signedMessage = new MimeMessage(session);
-        Enumeration<?> headers = mimeMsg.getAllHeaderLines();
-        while (headers.hasMoreElements()) {
-            signedMessage.addHeaderLine((String) headers.nextElement());
+        start = metrics.lap(Metrics.Stage.MIME_GENERATE, start);
+
+        // Write the headers of the original message and the signed
+        // multipart directly, rather than copying them into a new
+        // MimeMessage and encoding it again with saveChanges().
+        for (String header : headers) {
+            writeLine(out, header);
         }
-        signedMessage.setContent(mm);
-        signedMessage.saveChanges();
-        signedMessage.writeTo(new FileOutputStream(new File(Environment
-                .getExternalStorageDirectory(), "signed.message")));
+        writeLine(out, "Content-Type: "
+                + MimeUtility.fold(CONTENT_TYPE_HEADER_LEN,
+                        MimeUtility.unfold(mm.getContentType())));
+        writeLine(out, "");
+        mm.writeTo(out);
+        // the signature is computed while writing
+        metrics.recordStage(Metrics.Stage.SERIALIZE, System.nanoTime() - start
+                - contentSigner.getSignatureNanos());
+    }
+
+    private static void writeLine(OutputStream out, String line)
+            throws IOException {
+        // header lines are ASCII after encoding
+        for (int i = 0; i < line.length(); i++) {
+            out.write(line.charAt(i));
+        }
+        out.write('\r');
+        out.write('\n');
+    }
 
-        Transport.send(signedMessage);
+    private void verifySignedMessage(byte[] signedMessage,
+            X509Certificate signerCert) throws Exception {
+        MimeMessage parsed = new MimeMessage(getSession(),
+                new SharedByteArrayInputStream(signedMessage));
+        SMIMESigned signed = new SMIMESigned((MimeMultipart) parsed.getContent());
+        SignerInformationVerifier verifier = new JcaSimpleSignerInfoVerifierBuilder()
+                .setProvider("SC").build(signerCert);
+        for (Object o : signed.getSignerInfos().getSigners()) {
+            if (!((SignerInformation) o).verify(verifier)) {
+                throw new IllegalStateException(
+                        "Signed message does not verify");
+            }
+        }
     }
 
     public abstract X509Certificate getSignerCertificate();
 
-    protected abstract SignerInfoGenerator createSignerInfoGenerator(
-            ASN1EncodableVector signedAttrs);
+    /**
+     * Returns a new content signer. Content signers are stateful, so one is
+     * created for each message.
+     */
+    protected abstract ContentSigner createContentSigner();
+
+    private synchronized PreparedSigner getPreparedSigner(
+            X509Certificate signerCert) throws Exception {
+        // rebuilt if the certificate changes, e.g. after a card swap
+        if (preparedSigner == null
+                || !preparedSigner.getSignerCertificate().equals(signerCert)) {
+            preparedSigner = new PreparedSigner(signerCert);
+        }
+
+        return preparedSigner;
+    }
 
     public String getSignerRfc822Name() {
         return getRfc822Name(getSignerCertificate());
@@ -142,4 +446,105 @@ public abstract class SmimeSender {
             throw new RuntimeException(e);
         }
     }
+
+    // runs task on executor and waits for the result, or runs it directly if
+    // executor is null
+    private static <T> T callOn(Executor executor, Callable<T> task)
+            throws Exception {
+        if (executor == null) {
+            return task.call();
+        }
+
+        FutureTask<T> future = new FutureTask<T>(task);
+        executor.execute(future);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    // hashes on the calling thread, computes the signature on the card
+    // executor
+    private static class ExecutorContentSigner implements ContentSigner {
+
+        private final ContentSigner delegate;
+        private final Executor executor;
+
+        ExecutorContentSigner(ContentSigner delegate, Executor executor) {
+            this.delegate = delegate;
+            this.executor = executor;
+        }
+
+        @Override
+        public AlgorithmIdentifier getAlgorithmIdentifier() {
+            return delegate.getAlgorithmIdentifier();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return delegate.getOutputStream();
+        }
+
+        @Override
+        public byte[] getSignature() {
+            try {
+                return callOn(executor, new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return delegate.getSignature();
+                    }
+                });
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // records the time spent computing the signature
+    private static class TimedContentSigner implements ContentSigner {
+
+        private final ContentSigner delegate;
+        private final Metrics metrics;
+        private long signatureNanos;
+
+        TimedContentSigner(ContentSigner delegate, Metrics metrics) {
+            this.delegate = delegate;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public AlgorithmIdentifier getAlgorithmIdentifier() {
+            return delegate.getAlgorithmIdentifier();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return delegate.getOutputStream();
+        }
+
+        @Override
+        public byte[] getSignature() {
+            long start = System.nanoTime();
+            try {
+                return delegate.getSignature();
+            } finally {
+                signatureNanos = System.nanoTime() - start;
+                metrics.recordStage(Metrics.Stage.SIGNATURE, signatureNanos);
+            }
+        }
+
+        long getSignatureNanos() {
+            return signatureNanos;
+        }
+    }
 }
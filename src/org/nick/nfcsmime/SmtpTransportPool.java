@@ -0,0 +1,127 @@
+package org.nick.nfcsmime;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+
+import android.util.Log;
+
+/**
+ * Bounded pool of connected and authenticated SMTP transports. Connections
+ * are kept open between messages, so the TLS handshake and AUTH are only
+ * paid once per connection instead of once per message. Only connections
+ * that have been idle for a while are checked with a NOOP before reuse.
+ */
+public class SmtpTransportPool {
+
+    private static final String TAG = SmtpTransportPool.class.getSimpleName();
+
+    // servers rarely drop a connection this soon, so a connection used more
+    // recently is reused without the NOOP round trip
+    private static final long VALIDATE_IDLE_MILLIS = 5000;
+
+    private final SmimeSender sender;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<IdleTransport> idle = new LinkedBlockingDeque<IdleTransport>();
+
+    private volatile boolean closed;
+
+    public SmtpTransportPool(SmimeSender sender, int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Invalid pool size: "
+                    + maxConnections);
+        }
+        this.sender = sender;
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Returns a connected transport, blocking while all connections are in
+     * use. The transport must be given back with
+     * {@link #release(Transport, Exception)}.
+     */
+    public Transport borrow() throws MessagingException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Pool is closed");
+        }
+        permits.acquire();
+        try {
+            IdleTransport entry;
+            // most recently used first, it's the most likely to still be up
+            while ((entry = idle.pollFirst()) != null) {
+                // SMTPTransport.isConnected() sends a NOOP
+                if (entry.getIdleMillis() < VALIDATE_IDLE_MILLIS
+                        || entry.transport.isConnected()) {
+                    return entry.transport;
+                }
+                closeQuietly(entry.transport);
+            }
+
+            return sender.connectTransport();
+        } catch (MessagingException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back a borrowed transport. Transports that failed with anything
+     * other than a rejected message are closed instead of reused.
+     */
+    public void release(Transport transport, Exception error) {
+        boolean reusable = error == null
+                || error instanceof SendFailedException;
+        if (closed || !reusable) {
+            closeQuietly(transport);
+        } else {
+            idle.offerFirst(new IdleTransport(transport));
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes all idle connections. Borrowed connections are closed when they
+     * are released.
+     */
+    public void close() {
+        closed = true;
+        IdleTransport entry;
+        while ((entry = idle.pollFirst()) != null) {
+            closeQuietly(entry.transport);
+        }
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            Log.w(TAG, "Error closing transport: " + e.getMessage());
+        }
+    }
+
+    private static class IdleTransport {
+
+        private final Transport transport;
+        private final long releasedNanos = System.nanoTime();
+
+        IdleTransport(Transport transport) {
+            this.transport = transport;
+        }
+
+        long getIdleMillis() {
+            return (System.nanoTime() - releasedNanos) / 1000000;
+        }
+    }
+}
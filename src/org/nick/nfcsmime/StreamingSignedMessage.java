@@ -0,0 +1,236 @@
+package org.nick.nfcsmime;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+import org.spongycastle.asn1.ASN1ObjectIdentifier;
+import org.spongycastle.asn1.nist.NISTObjectIdentifiers;
+import org.spongycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.spongycastle.asn1.x509.AlgorithmIdentifier;
+import org.spongycastle.cms.CMSSignedDataStreamGenerator;
+import org.spongycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
+
+/**
+ * A multipart/signed message with a detached signature that is computed
+ * while the message is written out. The signed content (text body and
+ * base64 encoded attachments) is hashed and written to the output in one
+ * pass, and the signature part is appended at the end, so memory use
+ * doesn't depend on the attachment sizes.
+ *
+ * The signature is computed on every write, with the card, if any, still
+ * needed at the end of the content. Write to a spool file first if the SMTP
+ * upload can't be done while the card is present.
+ */
+public class StreamingSignedMessage extends MimeMessage {
+
+    private static final String CRLF = "\r\n";
+    private static final Pattern CRLF_PATTERN = Pattern.compile("\r?\n");
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final String[] SIGNATURE_PART_HEADERS = {
+            "Content-Type: application/pkcs7-signature; name=smime.p7s; smime-type=signed-data",
+            "Content-Transfer-Encoding: base64",
+            "Content-Disposition: attachment; filename=\"smime.p7s\"",
+            "Content-Description: S/MIME Cryptographic Signature" };
+
+    private static final Map<ASN1ObjectIdentifier, String> MICALGS = new HashMap<ASN1ObjectIdentifier, String>();
+
+    static {
+        MICALGS.put(OIWObjectIdentifiers.idSHA1, "sha-1");
+        MICALGS.put(NISTObjectIdentifiers.id_sha256, "sha-256");
+        MICALGS.put(NISTObjectIdentifiers.id_sha384, "sha-384");
+        MICALGS.put(NISTObjectIdentifiers.id_sha512, "sha-512");
+    }
+
+    private static final Random random = new Random();
+    private static final AtomicInteger partCount = new AtomicInteger();
+
+    private final CMSSignedDataStreamGenerator gen;
+    private final ContentPart[] parts;
+    private final String signedBoundary;
+    private final String mixedBoundary;
+
+    StreamingSignedMessage(Session session, MailMessage msg,
+            List<MailAttachment> attachments,
+            CMSSignedDataStreamGenerator gen,
+            AlgorithmIdentifier sigAlgId) throws MessagingException {
+        super(session);
+        this.gen = gen;
+        this.signedBoundary = createBoundary();
+        this.mixedBoundary = createBoundary();
+
+        parts = new ContentPart[attachments.size() + 1];
+        parts[0] = new ContentPart();
+        // JavaMail writes headers and base64 with CRLF, only the text needs
+        // to be put in canonical form
+        parts[0].setText(CRLF_PATTERN.matcher(msg.getBody()).replaceAll(CRLF));
+        for (int i = 0; i < attachments.size(); i++) {
+            MailAttachment attachment = attachments.get(i);
+            ContentPart part = new ContentPart();
+            part.setDataHandler(new DataHandler(attachment.getDataSource()));
+            part.setHeader("Content-Type", attachment.getContentType());
+            // set explicitly, otherwise the whole attachment is read to
+            // pick an encoding
+            part.setHeader("Content-Transfer-Encoding", "base64");
+            part.setFileName(attachment.getFileName());
+            parts[i + 1] = part;
+        }
+        for (ContentPart part : parts) {
+            part.updateHeaders();
+        }
+
+        setFrom(new InternetAddress(msg.getFrom()));
+        setRecipient(Message.RecipientType.TO,
+                new InternetAddress(msg.getTo()));
+        setSubject(msg.getSubject());
+
+        ContentType contentType = new ContentType("multipart", "signed",
+                null);
+        contentType.setParameter("protocol", "application/pkcs7-signature");
+        contentType.setParameter("micalg", getMicAlg(sigAlgId));
+        contentType.setParameter("boundary", signedBoundary);
+        setHeader("Content-Type", contentType.toString());
+        saveChanges();
+    }
+
+    /**
+     * Only sets the header fields that don't depend on the content, which
+     * isn't available until the message is written.
+     */
+    @Override
+    protected void updateHeaders() throws MessagingException {
+        setHeader("MIME-Version", "1.0");
+        updateMessageID();
+    }
+
+    @Override
+    public void writeTo(OutputStream os, String[] ignoreList)
+            throws IOException, MessagingException {
+        OutputStream out = new NonClosingOutputStream(os);
+
+        Enumeration<?> headers = getNonMatchingHeaderLines(ignoreList);
+        while (headers.hasMoreElements()) {
+            writeLine(out, (String) headers.nextElement());
+        }
+        writeLine(out, "");
+        writeLine(out, "--" + signedBoundary);
+
+        // the generator hashes the content and copies it to out
+        ByteArrayOutputStream signature = new ByteArrayOutputStream();
+        OutputStream contentOut = gen.open(signature, false, out);
+        OutputStream bufferedOut = new BufferedOutputStream(contentOut,
+                BUFFER_SIZE);
+        writeContent(bufferedOut);
+        bufferedOut.flush();
+        // computes the signature
+        contentOut.close();
+
+        // the CRLF before the boundary is not part of the signed content
+        writeLine(out, "");
+        writeLine(out, "--" + signedBoundary);
+        for (String header : SIGNATURE_PART_HEADERS) {
+            writeLine(out, header);
+        }
+        writeLine(out, "");
+        OutputStream base64Out = MimeUtility.encode(out, "base64");
+        base64Out.write(signature.toByteArray());
+        base64Out.close();
+        writeLine(out, "");
+        writeLine(out, "--" + signedBoundary + "--");
+        out.flush();
+    }
+
+    private void writeContent(OutputStream out) throws IOException,
+            MessagingException {
+        ContentType contentType = new ContentType("multipart", "mixed", null);
+        contentType.setParameter("boundary", mixedBoundary);
+        writeLine(out, "Content-Type: " + contentType);
+        writeLine(out, "");
+        for (ContentPart part : parts) {
+            writeLine(out, "--" + mixedBoundary);
+            part.writeTo(out);
+            writeLine(out, "");
+        }
+        // the multipart ends with a line break, which verifiers include
+        // when they hash the parsed content
+        writeLine(out, "--" + mixedBoundary + "--");
+    }
+
+    private static String getMicAlg(AlgorithmIdentifier sigAlgId) {
+        ASN1ObjectIdentifier digestOid = new DefaultDigestAlgorithmIdentifierFinder()
+                .find(sigAlgId).getAlgorithm();
+        String micAlg = MICALGS.get(digestOid);
+        if (micAlg == null) {
+            throw new IllegalArgumentException("Unsupported digest: "
+                    + digestOid);
+        }
+
+        return micAlg;
+    }
+
+    private static String createBoundary() {
+        synchronized (random) {
+            return String.format("----=_Signed_%d_%x.%d",
+                    partCount.incrementAndGet(), random.nextLong(),
+                    System.currentTimeMillis());
+        }
+    }
+
+    private static void writeLine(OutputStream out, String line)
+            throws IOException {
+        // header lines and boundaries are ASCII
+        for (int i = 0; i < line.length(); i++) {
+            out.write(line.charAt(i));
+        }
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private static class ContentPart extends MimeBodyPart {
+
+        @Override
+        public void updateHeaders() throws MessagingException {
+            super.updateHeaders();
+        }
+    }
+
+    // the CMS generator and the base64 encoder close the stream they
+    // write to, but the caller owns it
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.nick.nfcsmime;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.util.Log;
+
+/**
+ * Keeps the connection to the last discovered card open for an idle window
+ * after its last command, so that signing soon after the tap reuses the
+ * connected, selected session instead of reconnecting. While idle, the card
+ * is probed periodically and the connection is closed as soon as it is gone
+ * or the window expires.
+ *
+ * All card I/O, probes included, runs on <code>cardExecutor</code>, which
+ * must be the executor other card commands run on, so probes never overlap
+ * with a signature.
+ */
+public class TagSessionManager {
+
+    private static final String TAG = TagSessionManager.class
+            .getSimpleName();
+
+    private final Executor cardExecutor;
+    private final long idleMillis;
+    private final long probeIntervalMillis;
+    private final ScheduledExecutorService timer;
+    private final AtomicBoolean checkPending = new AtomicBoolean();
+
+    private MuscleCard card;
+    // incremented by attach(), checks started before are discarded
+    private int attachCount;
+    private long attachNanos;
+    private long reattachTimeoutMillis;
+    private ScheduledFuture<?> checkTask;
+
+    public TagSessionManager(Executor cardExecutor, long idleMillis,
+            long probeIntervalMillis) {
+        this.cardExecutor = cardExecutor;
+        this.idleMillis = idleMillis;
+        this.probeIntervalMillis = probeIntervalMillis;
+        this.timer = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "tag-session");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Sets the reattach timeout of the managed card, see
+     * {@link MuscleCard#setReattachTimeout(long)}.
+     */
+    public synchronized void setReattachTimeout(long reattachTimeoutMillis) {
+        this.reattachTimeoutMillis = reattachTimeoutMillis;
+        if (card != null) {
+            card.setReattachTimeout(reattachTimeoutMillis);
+        }
+    }
+
+    /**
+     * Hands a newly discovered tag to the managed card and starts the idle
+     * window. Doesn't talk to the card, so it can be called on the UI thread
+     * and while a signature is waiting for the card to come back.
+     */
+    public synchronized MuscleCard attach(CardTransport transport) {
+        if (card == null) {
+            card = new MuscleCard(transport);
+            card.setReattachTimeout(reattachTimeoutMillis);
+        } else {
+            // keeps per-card state if it is the same card
+            card.reattach(transport);
+        }
+        attachCount++;
+        attachNanos = System.nanoTime();
+        if (checkTask == null) {
+            checkTask = timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    scheduleCheck();
+                }
+            }, probeIntervalMillis, probeIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        return card;
+    }
+
+    /**
+     * Returns the managed card, <code>null</code> if no card was attached.
+     */
+    public synchronized MuscleCard getCard() {
+        return card;
+    }
+
+    /**
+     * Stops probing. The connection, if any, is left to the system.
+     */
+    public synchronized void shutdown() {
+        timer.shutdownNow();
+        checkTask = null;
+    }
+
+    // runs the check on the card executor, at most one queued at a time
+    private void scheduleCheck() {
+        if (getCard() == null || !checkPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            cardExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        check();
+                    } finally {
+                        checkPending.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            checkPending.set(false);
+            shutdown();
+        }
+    }
+
+    private void check() {
+        MuscleCard card;
+        int attached;
+        long idle;
+        synchronized (this) {
+            card = this.card;
+            attached = attachCount;
+            idle = Math.min(card.getIdleMillis(),
+                    (System.nanoTime() - attachNanos) / 1000000);
+        }
+
+        if (idle >= idleMillis) {
+            close(attached, "idle for " + idle + " ms");
+        } else if (idle >= probeIntervalMillis && !card.isPresent()) {
+            close(attached, "card gone");
+        }
+    }
+
+    // closes the connection unless a new tag was attached in the meantime
+    private synchronized void close(int attached, String reason) {
+        if (attached != attachCount) {
+            return;
+        }
+        Log.d(TAG, "Closing tag session: " + reason);
+        if (checkTask != null) {
+            checkTask.cancel(false);
+            checkTask = null;
+        }
+        try {
+            card.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing tag: " + e.getMessage());
+        }
+    }
+}